@@ -0,0 +1,113 @@
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding as ConnectedThread.run() does it: bytes from the stream go
+ * through the reassembler, every frame into the EventDecoder. The stream is
+ * recorded once in setup and mixes buttons, pad moves and sensor samples.
+ * Scores are per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    private static final int FRAMES = 1024;
+    // Bytes per read, about what one RFCOMM read returns
+    private static final int CHUNK = 256;
+
+    @Param({ "0", "1" })
+    public int format;
+
+    private final FrameCodec.Reassembler mReassembler = new FrameCodec.Reassembler();
+    private final EventDecoder mDecoder = new EventDecoder();
+    private byte[] mStream;
+    private int mLength;
+    private FrameCodec.FrameListener mFrames;
+
+    @Setup
+    public void setup(final Blackhole bh) {
+        EventEncoder encoder = new EventEncoder();
+        encoder.setFormat(format);
+        AccelerationCodec.Encoder accel = new AccelerationCodec.Encoder();
+        mStream = new byte[FRAMES * FrameCodec.MAX_FRAME];
+        for (int i = 0; i < FRAMES; i++) {
+            switch (i % 4) {
+            case 0:
+                encoder.reset().putButton(Constants.KEY_EVENT, (i >> 2) & 1, SDL2.Scancode.A, SDL2.Keycode.a);
+                break;
+            case 1:
+                encoder.reset().putArrow(2, 1 + (i & 7));
+                break;
+            default:
+                accel.put(encoder.reset(), (i & 63) * 0.05f, 9.81f, (i & 31) * 0.02f);
+                accel.keyframeQueued();
+                break;
+            }
+            mLength += FrameCodec.encode(encoder.getDataType(), FrameCodec.FLAG_STAMP, i, i,
+                    encoder.array(), 0, encoder.length(), mStream, mLength);
+        }
+        mDecoder.setListener(new EventDecoder.Listener() {
+            public void onKey(int action, int scancode, int keycode) {
+                bh.consume(scancode);
+            }
+
+            public void onMouseKey(int action, int button) {
+                bh.consume(button);
+            }
+
+            public void onMouseMotion(int action, int x, int y) {
+                bh.consume(x);
+            }
+
+            public void onArrow(int action, int part) {
+                bh.consume(part);
+            }
+
+            public void onAcceleration(float x, float y, float z) {
+                bh.consume(x);
+            }
+
+            public void onJoystick(int action, int x, int y, int bits) {
+                bh.consume(x);
+            }
+
+            public void onJoystickSample(int x, int y, int bits, int ageMicros) {
+                bh.consume(x);
+            }
+        });
+        mFrames = new FrameCodec.FrameListener() {
+            public void onFrame(int type, int flags, byte[] buffer, int offset, int length) {
+                if (type == Constants.CONTROL_DATA || type == Constants.CONTROL_DATA_COMPACT) {
+                    mDecoder.decode(type, buffer, offset, length);
+                }
+            }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long decode() {
+        for (int off = 0; off < mLength; off += CHUNK) {
+            mReassembler.feed(mStream, off, Math.min(CHUNK, mLength - off), mFrames);
+        }
+        return mDecoder.getEventCount();
+    }
+}
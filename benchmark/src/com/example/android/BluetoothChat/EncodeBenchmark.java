@@ -0,0 +1,67 @@
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding as PlayActivity does it: one button event per touch in
+ * handleButtonTouch(), one accelerometer sample per onSensorChanged(), each
+ * framed the way the writer thread frames it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+    @Param({ "0", "1" })
+    public int format;
+
+    private final EventEncoder mEncoder = new EventEncoder();
+    private final AccelerationCodec.Encoder mAccelEncoder = new AccelerationCodec.Encoder();
+    private final byte[] mFrame = new byte[FrameCodec.MAX_FRAME];
+    private int mCount;
+
+    @Setup
+    public void setup() {
+        mEncoder.setFormat(format);
+    }
+
+    @Benchmark
+    public int button() {
+        int i = mCount++;
+        mEncoder.reset().putButton(Constants.KEY_EVENT, i & 1, SDL2.Scancode.A + (i & 15),
+                SDL2.Keycode.a + (i & 15));
+        return frame();
+    }
+
+    @Benchmark
+    public int sensorSample() {
+        // A slow tilt with some noise, like a phone held in the hand
+        int i = mCount++;
+        float x = (i & 63) * 0.05f;
+        float y = 9.81f - (i & 7) * 0.01f;
+        float z = ((i * 7) & 31) * 0.02f;
+        mAccelEncoder.put(mEncoder.reset(), x, y, z);
+        // Every keyframe gets queued here
+        mAccelEncoder.keyframeQueued();
+        return frame();
+    }
+
+    private int frame() {
+        return FrameCodec.encode(mEncoder.getDataType(), FrameCodec.FLAG_STAMP, mCount, mCount,
+                mEncoder.array(), 0, mEncoder.length(), mFrame, 0);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.android.BluetoothChat;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The partition math behind Pad.getPartition() and Pad.setPartition(), on a
+ * pad the size of the one in activity_play. Touches are spread over the pad
+ * and a little past its edge; getPartition scores are per touch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PadBenchmark {
+    private static final int TOUCHES = 1024;
+    private static final int RADIUS = 300;
+
+    @Param({ "4", "8", "16" })
+    public int partitions;
+
+    private final PadGeometry mGeometry = new PadGeometry();
+    private final float[] mX = new float[TOUCHES];
+    private final float[] mY = new float[TOUCHES];
+
+    @Setup
+    public void setup() {
+        mGeometry.setBounds(RADIUS, RADIUS, RADIUS);
+        mGeometry.setPartition(partitions);
+        Random r = new Random(42);
+        for (int i = 0; i < TOUCHES; i++) {
+            mX[i] = r.nextFloat() * 2.2f * RADIUS - 0.1f * RADIUS;
+            mY[i] = r.nextFloat() * 2.2f * RADIUS - 0.1f * RADIUS;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOUCHES)
+    public int getPartition() {
+        int sum = 0;
+        for (int i = 0; i < TOUCHES; i++) {
+            sum += mGeometry.getPartition(mX[i], mY[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public boolean setPartition() {
+        return mGeometry.setPartition(partitions);
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The path of BluetoothChatService.write() down to a loopback transport:
+ * the payload is queued on a lane, then the writer thread's loop takes it,
+ * frames it into the WriteCombiner with latency and metrics on, and writes
+ * the batch. A background thread drains the other end like the remote
+ * device. Both sides run on the benchmark thread here, so the score is the
+ * CPU cost per frame without the hand-off; the service itself needs
+ * android.os.Handler and does not run on a plain JVM. Scores are per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteBenchmark {
+    private static final int FRAMES = 64;
+
+    // Frames per stream write: 1 is the urgent lane, more is a combined batch
+    @Param({ "1", "8" })
+    public int batch;
+
+    private final EventEncoder mEncoder = new EventEncoder();
+    private final FrameRing mLane = new FrameRing(64 * 1024);
+    private final InputLatency mLatency = new InputLatency();
+    private final ServiceMetrics mMetrics = new ServiceMetrics();
+    private Transport mLocal;
+    private Transport mRemote;
+    private Thread mDrain;
+    private WriteCombiner mCombiner;
+    private int mSeq;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        LoopbackTransportFactory transports = new LoopbackTransportFactory();
+        TransportFactory.Endpoint endpoint = transports.listen(true);
+        mLocal = transports.open("loopback", true);
+        mLocal.connect();
+        mRemote = endpoint.accept();
+        endpoint.close();
+        mCombiner = new WriteCombiner(mLocal.getOutputStream(), 4 * FrameCodec.MAX_FRAME,
+                mLatency, mMetrics);
+        mEncoder.setFormat(EventEncoder.FORMAT_COMPACT);
+        mEncoder.putButton(Constants.KEY_EVENT, 0, SDL2.Scancode.A, SDL2.Keycode.a);
+        final InputStream in = mRemote.getInputStream();
+        mDrain = new Thread("drain") {
+            public void run() {
+                byte[] b = new byte[8192];
+                try {
+                    while (in.read(b, 0, b.length) >= 0) {
+                        // Discard
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        };
+        mDrain.setDaemon(true);
+        mDrain.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        mLocal.close();
+        mRemote.close();
+        mDrain.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long write() throws IOException {
+        byte[] payload = mEncoder.array();
+        int length = mEncoder.length();
+        for (int i = 0; i < FRAMES; i += batch) {
+            for (int j = 0; j < batch; j++) {
+                mLane.offer(Constants.CONTROL_DATA_COMPACT, 0, InputLatency.now(), payload, 0, length);
+            }
+            while (mLane.peek()) {
+                mCombiner.append(mLane.type, FrameCodec.FLAG_STAMP, mSeq, mLane.stamp,
+                        mLane.array(), mLane.offset, mLane.length, false);
+                mSeq = (mSeq + 1) & 0xffff;
+                mLane.release();
+            }
+            mCombiner.flush();
+        }
+        return mCombiner.getFrameCount();
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.android.BluetoothChat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Delta coding for the accelerometer stream in the compact format. Samples
+ * are quantized to Q8.8 and numbered with an 8-bit sequence. The tag's high
+ * nibble selects the layout of an ACCELERATION event:
+ *
+ * <pre>
+ *   SAMPLE_ABSOLUTE  x, y, z as Q8.8 shorts (see EventEncoder)
+ *   SAMPLE_KEYFRAME  seq, x, y, z as Q8.8 shorts
+ *   SAMPLE_DELTA     seq, ref, zigzag varint x - x[ref], y - y[ref], z - z[ref]
+ * </pre>
+ *
+ * The reference of a delta is either the last keyframe or the last sample
+ * the host acknowledged with an {@link Constants#ACK_DATA} frame
+ * (payload: ACCELERATION, seq), whichever is newer. A keyframe goes out every
+ * {@link #KEYFRAME_INTERVAL} samples, so a host that never acknowledges
+ * still recovers from a lost frame. A keyframe only becomes a reference
+ * once the caller reports it queued with
+ * {@link Encoder#keyframeQueued()}; one the link dropped is never referred
+ * to and is simply repeated.
+ */
+public final class AccelerationCodec {
+    // Layouts, stored in the high nibble of the tag
+    public static final int SAMPLE_ABSOLUTE = 0;
+    public static final int SAMPLE_KEYFRAME = 1;
+    public static final int SAMPLE_DELTA = 2;
+
+    public static final int KEYFRAME_INTERVAL = 32;
+
+    // References further back than this are treated as lost
+    private static final int MAX_DISTANCE = 128;
+
+    private AccelerationCodec() {}
+
+    private static int distance(int from, int to) {
+        return (to - from) & 0xff;
+    }
+
+    /**
+     * Controller side. Confined to the thread that encodes events, except
+     * for {@link #onAck(int)} which may be called from the reading thread.
+     */
+    public static final class Encoder {
+        private final int[] mHistory = new int[256 * 3];
+        private int mSeq = -1;
+        private int mKeyframe = -1;
+        private int mSinceKeyframe;
+        private boolean mWroteKeyframe;
+        // Keyframe written by the last put(), until it is reported queued
+        private int mPendingKeyframe = -1;
+        private volatile int mAcked = -1;
+
+        /**
+         * Append one sample to out. Falls back to the float layout when out
+         * is not in the compact format.
+         */
+        public void put(EventEncoder out, float x, float y, float z) {
+            if (out.getFormat() != EventEncoder.FORMAT_COMPACT) {
+                out.putAcceleration(x, y, z);
+                mWroteKeyframe = false;
+                return;
+            }
+            int seq = (mSeq + 1) & 0xff;
+            int qx = EventEncoder.toFixed(x);
+            int qy = EventEncoder.toFixed(y);
+            int qz = EventEncoder.toFixed(z);
+            int ref = reference(seq);
+            if (ref < 0 || mSinceKeyframe >= KEYFRAME_INTERVAL) {
+                out.putTag(Constants.ACCELERATION, SAMPLE_KEYFRAME);
+                out.putByte(seq);
+                out.putShort(qx);
+                out.putShort(qy);
+                out.putShort(qz);
+                mPendingKeyframe = seq;
+                mWroteKeyframe = true;
+            } else {
+                int r = ref * 3;
+                out.putTag(Constants.ACCELERATION, SAMPLE_DELTA);
+                out.putByte(seq);
+                out.putByte(ref);
+                out.putVarint(EventEncoder.zigzag(qx - mHistory[r]));
+                out.putVarint(EventEncoder.zigzag(qy - mHistory[r + 1]));
+                out.putVarint(EventEncoder.zigzag(qz - mHistory[r + 2]));
+                mSinceKeyframe++;
+                mWroteKeyframe = false;
+                mPendingKeyframe = -1;
+            }
+            int h = seq * 3;
+            mHistory[h] = qx;
+            mHistory[h + 1] = qy;
+            mHistory[h + 2] = qz;
+            mSeq = seq;
+        }
+
+        /**
+         * Return true if the last put() wrote a keyframe. Later deltas rely
+         * on it, so it must not be conflated away.
+         */
+        public boolean isKeyframe() {
+            return mWroteKeyframe;
+        }
+
+        /**
+         * Report that the keyframe of the last put() was queued for sending.
+         * Later deltas refer to it only from then on.
+         */
+        public void keyframeQueued() {
+            if (mPendingKeyframe < 0) return;
+            mKeyframe = mPendingKeyframe;
+            mPendingKeyframe = -1;
+            mSinceKeyframe = 0;
+        }
+
+        /**
+         * Record that the host holds sample seq.
+         */
+        public void onAck(int seq) {
+            mAcked = seq & 0xff;
+        }
+
+        /**
+         * Forget all references, e.g. after reconnecting. The next sample
+         * is a keyframe.
+         */
+        public void reset() {
+            mKeyframe = -1;
+            mPendingKeyframe = -1;
+            mAcked = -1;
+            mSinceKeyframe = 0;
+        }
+
+        // Newest usable reference for seq, or -1 if a keyframe is needed
+        private int reference(int seq) {
+            int best = -1;
+            int bestDistance = MAX_DISTANCE;
+            if (mKeyframe >= 0) {
+                int d = distance(mKeyframe, seq);
+                if (d > 0 && d < bestDistance) { best = mKeyframe; bestDistance = d; }
+            }
+            int acked = mAcked;
+            if (acked >= 0) {
+                int d = distance(acked, seq);
+                if (d > 0 && d < bestDistance) { best = acked; bestDistance = d; }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Host side. Rebuilds the exact quantized values the controller sent.
+     * Confined to the thread reading the connection.
+     */
+    public static final class Decoder {
+        private final int[] mHistory = new int[256 * 3];
+        private final boolean[] mValid = new boolean[256];
+        private int mLastSeq = -1;
+        private boolean mHasValue;
+        private long mLost;
+
+        // Result of the last decode, in Q8.8
+        public int x, y, z;
+
+        /**
+         * Decode one keyframe or delta starting at offset. Check
+         * {@link #hasValue()} afterwards, a delta against a reference this
+         * side never received is skipped.
+         * @return The number of bytes consumed, or -1 if it is truncated
+         */
+        public int decode(ByteBuffer b, int layout, int offset, int length) {
+            mHasValue = false;
+            if (layout == SAMPLE_KEYFRAME) {
+                if (length < 7) return -1;
+                int seq = b.get(offset) & 0xff;
+                store(seq, b.getShort(offset + 1), b.getShort(offset + 3), b.getShort(offset + 5));
+                return 7;
+            }
+            if (layout != SAMPLE_DELTA || length < 5) return -1;
+            int seq = b.get(offset) & 0xff;
+            int ref = b.get(offset + 1) & 0xff;
+            int pos = offset + 2;
+            int end = offset + length;
+            int d0 = 0, d1 = 0, d2 = 0;
+            for (int i = 0; i < 3; i++) {
+                int v = 0;
+                int shift = 0;
+                int c;
+                do {
+                    if (pos >= end || shift > 28) return -1;
+                    c = b.get(pos++);
+                    v |= (c & 0x7f) << shift;
+                    shift += 7;
+                } while ((c & 0x80) != 0);
+                v = (v >>> 1) ^ -(v & 1);
+                if (i == 0) d0 = v; else if (i == 1) d1 = v; else d2 = v;
+            }
+            int consumed = pos - offset;
+            if (!mValid[ref]) {
+                mLost++;
+                mValid[seq] = false;
+                return consumed;
+            }
+            int r = ref * 3;
+            store(seq, mHistory[r] + d0, mHistory[r + 1] + d1, mHistory[r + 2] + d2);
+            return consumed;
+        }
+
+        /** Return true if the last decode rebuilt a sample into x, y, z. */
+        public boolean hasValue() {
+            return mHasValue;
+        }
+
+        /**
+         * Forget all references, e.g. for a new connection.
+         */
+        public void reset() {
+            for (int i = 0; i < mValid.length; i++) mValid[i] = false;
+            mLastSeq = -1;
+            mHasValue = false;
+        }
+
+        /** Return the sequence number of the last rebuilt sample, or -1. */
+        public int getLastSeq() {
+            return mLastSeq;
+        }
+
+        /** Return the number of deltas dropped for a missing reference. */
+        public long getLostCount() {
+            return mLost;
+        }
+
+        private void store(int seq, int qx, int qy, int qz) {
+            if (mLastSeq >= 0 && distance(seq, mLastSeq) < MAX_DISTANCE) {
+                // Late, overtaken by a newer frame: keep it as a reference
+                // but neither report the stale value nor touch newer history
+                int h = seq * 3;
+                mHistory[h] = qx;
+                mHistory[h + 1] = qy;
+                mHistory[h + 2] = qz;
+                mValid[seq] = true;
+                return;
+            }
+            if (mLastSeq >= 0) {
+                // Whatever was sent in between is lost, so are its old values
+                for (int i = (mLastSeq + 1) & 0xff; i != seq; i = (i + 1) & 0xff) {
+                    mValid[i] = false;
+                }
+            }
+            int h = seq * 3;
+            mHistory[h] = x = qx;
+            mHistory[h + 1] = y = qy;
+            mHistory[h + 2] = z = qz;
+            mValid[seq] = true;
+            // Samples half the sequence space back may be reused soon
+            mValid[(seq + MAX_DISTANCE) & 0xff] = false;
+            mLastSeq = seq;
+            mHasValue = true;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * Turns the accelerometer's own sample stream into the one worth sending.
+ * Every input sample goes through a first order IIR low-pass, weighted by
+ * the time since the sample before, so the result does not depend on the
+ * rate the device delivers at. The filtered value is then resampled onto a
+ * fixed grid of the target rate by the sensor timestamps, and a grid point
+ * is only sent if some axis moved past the deadband since the last sent
+ * value, or if nothing was sent for the refresh interval.
+ *
+ * No state is allocated per sample. A filter is confined to the thread that
+ * receives the sensor events. Typical use:
+ *
+ * <pre>
+ *   if (mFilter.offer(event.timestamp, event.values[0], event.values[1], event.values[2])) {
+ *       send(mFilter.getX(), mFilter.getY(), mFilter.getZ());
+ *   }
+ * </pre>
+ */
+public final class AccelerationFilter {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    // Gaps longer than this restart the filter from the next sample
+    private static final long MAX_GAP_NANOS = NANOS_PER_SECOND;
+
+    private long mIntervalNanos;
+    private long mRefreshNanos;
+    // Time constant of the low-pass, 0 passes samples through
+    private double mTauNanos;
+    private float mDeadband;
+
+    private boolean mStarted;
+    private long mLastTime;
+    private long mNextTime;
+    private long mSentTime;
+    private boolean mSent;
+    private float mX, mY, mZ;
+    private float mSentX, mSentY, mSentZ;
+
+    /**
+     * @param rateHz  Most samples per second to send
+     * @param cutoffHz  Corner frequency of the low-pass, 0 for none
+     * @param deadband  Smallest change of an axis worth sending, in m/s^2
+     */
+    public AccelerationFilter(double rateHz, double cutoffHz, float deadband) {
+        setRate(rateHz);
+        setCutoff(cutoffHz);
+        setDeadband(deadband);
+        setRefreshInterval(NANOS_PER_SECOND);
+    }
+
+    public void setRate(double rateHz) {
+        if (!(rateHz > 0)) {
+            throw new IllegalArgumentException("rate out of range: " + rateHz);
+        }
+        mIntervalNanos = Math.max(1, (long) (NANOS_PER_SECOND / rateHz));
+    }
+
+    public void setCutoff(double cutoffHz) {
+        if (!(cutoffHz >= 0)) {
+            throw new IllegalArgumentException("cutoff out of range: " + cutoffHz);
+        }
+        mTauNanos = cutoffHz == 0 ? 0 : NANOS_PER_SECOND / (2 * Math.PI * cutoffHz);
+    }
+
+    public void setDeadband(float deadband) {
+        if (!(deadband >= 0)) {
+            throw new IllegalArgumentException("deadband out of range: " + deadband);
+        }
+        mDeadband = deadband;
+    }
+
+    /**
+     * Send the current value after this long without a send even if it is
+     * inside the deadband, so a host that lost the last sample catches up.
+     */
+    public void setRefreshInterval(long nanos) {
+        mRefreshNanos = nanos;
+    }
+
+    /**
+     * Filter one sensor sample.
+     * @param timestampNanos  SensorEvent.timestamp of the sample
+     * @return true if the filtered value is due to be sent
+     */
+    public boolean offer(long timestampNanos, float x, float y, float z) {
+        long dt = timestampNanos - mLastTime;
+        if (!mStarted || dt < 0 || dt > MAX_GAP_NANOS) {
+            mStarted = true;
+            mX = x;
+            mY = y;
+            mZ = z;
+            mNextTime = timestampNanos;
+        } else {
+            float a = mTauNanos == 0 ? 1 : (float) (dt / (mTauNanos + dt));
+            mX += a * (x - mX);
+            mY += a * (y - mY);
+            mZ += a * (z - mZ);
+        }
+        mLastTime = timestampNanos;
+        if (timestampNanos - mNextTime < 0) {
+            return false;
+        }
+        // Next grid point, skipping the ones a slow sensor missed
+        mNextTime += mIntervalNanos;
+        if (timestampNanos - mNextTime >= 0) {
+            mNextTime = timestampNanos + mIntervalNanos;
+        }
+        if (mSent && timestampNanos - mSentTime < mRefreshNanos
+                && Math.abs(mX - mSentX) < mDeadband
+                && Math.abs(mY - mSentY) < mDeadband
+                && Math.abs(mZ - mSentZ) < mDeadband) {
+            return false;
+        }
+        mSent = true;
+        mSentTime = timestampNanos;
+        mSentX = mX;
+        mSentY = mY;
+        mSentZ = mZ;
+        return true;
+    }
+
+    /** Forget the stream, the next sample starts it over and is sent. */
+    public void reset() {
+        mStarted = false;
+        mSent = false;
+    }
+
+    public float getX() {
+        return mX;
+    }
+
+    public float getY() {
+        return mY;
+    }
+
+    public float getZ() {
+        return mZ;
+    }
+}
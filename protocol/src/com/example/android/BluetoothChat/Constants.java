@@ -12,6 +12,8 @@ public interface Constants {
 	//Bluetooth transmite data type
 	public final int TEXT_DATA = 1;
 	public final int CONTROL_DATA = 2;
+	public final int CONTROL_DATA_COMPACT = 3;
+	public final int ACK_DATA = 4;
 	
 	//Send event type
 	public final int KEY_EVENT = 1;
@@ -19,4 +21,6 @@ public interface Constants {
 	public final int MOUSE_MOTION = 3;
 	public final int ARROW_KEY = 4;
 	public final int ACCELERATION = 5;
+	public final int JOYSTICK = 6;
+	public final int JOYSTICK_SAMPLES = 7;
 }
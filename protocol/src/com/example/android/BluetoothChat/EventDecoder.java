@@ -0,0 +1,341 @@
+package com.example.android.BluetoothChat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes control event payloads in place. Fields are read with absolute
+ * gets from a ByteBuffer view of the receive buffer and dispatched through
+ * a table indexed by the event type, so the path from frame to callback
+ * neither copies nor allocates.
+ *
+ * The default tables decode both formats written by {@link EventEncoder} and
+ * forward them to a {@link Listener}; {@link #register(int, Handler)} and
+ * {@link #registerCompact(int, CompactHandler)} replace the entry for a
+ * single type. A decoder belongs to the thread that reads the connection,
+ * register handlers before connecting.
+ */
+public final class EventDecoder {
+    // Highest event type the table has room for
+    public static final int MAX_TYPE = 15;
+
+    /**
+     * Decodes one event type. offset points just past the 4-byte head and
+     * length counts the bytes left in the payload.
+     */
+    public interface Handler {
+        public void decode(ByteBuffer buffer, int offset, int length);
+    }
+
+    /**
+     * Decodes one compact event type. action is the high nibble of the tag,
+     * offset points just past the tag and length counts the bytes left in
+     * the payload.
+     * @return The number of bytes consumed, or -1 if the event is truncated
+     */
+    public interface CompactHandler {
+        public int decode(ByteBuffer buffer, int action, int offset, int length);
+    }
+
+    /**
+     * Typed callbacks for the built-in event layouts.
+     */
+    public interface Listener {
+        public void onKey(int action, int scancode, int keycode);
+        public void onMouseKey(int action, int button);
+        public void onMouseMotion(int action, int x, int y);
+        public void onArrow(int action, int part);
+        public void onAcceleration(float x, float y, float z);
+        /** x and y are signed axis values of bits bits, y pointing up. */
+        public void onJoystick(int action, int x, int y, int bits);
+        /**
+         * One move of a JOYSTICK_SAMPLES event, oldest first, taken
+         * ageMicros before the capture time of the frame.
+         */
+        public void onJoystickSample(int x, int y, int bits, int ageMicros);
+    }
+
+    private final Handler[] mHandlers = new Handler[MAX_TYPE + 1];
+    private final CompactHandler[] mCompactHandlers = new CompactHandler[MAX_TYPE + 1];
+    private Listener mListener;
+    private final AccelerationCodec.Decoder mAcceleration = new AccelerationCodec.Decoder();
+    private byte[] mArray;
+    private ByteBuffer mView;
+    // Read position for varints, saves returning two values
+    private int mPos;
+    private int mEnd;
+
+    // Statistics
+    private long mEvents;
+    private long mDropped;
+
+    public EventDecoder() {
+        mHandlers[Constants.KEY_EVENT] = new Handler() {
+            public void decode(ByteBuffer b, int off, int len) {
+                if (len < 12) { mDropped++; return; }
+                if (mListener != null) mListener.onKey(b.getInt(off), b.getInt(off + 4), b.getInt(off + 8));
+            }
+        };
+        mHandlers[Constants.MOUSE_KEY] = new Handler() {
+            public void decode(ByteBuffer b, int off, int len) {
+                if (len < 8) { mDropped++; return; }
+                if (mListener != null) mListener.onMouseKey(b.getInt(off), b.getInt(off + 4));
+            }
+        };
+        mHandlers[Constants.MOUSE_MOTION] = new Handler() {
+            public void decode(ByteBuffer b, int off, int len) {
+                if (len < 12) { mDropped++; return; }
+                if (mListener != null) mListener.onMouseMotion(b.getInt(off), b.getInt(off + 4), b.getInt(off + 8));
+            }
+        };
+        mHandlers[Constants.ARROW_KEY] = new Handler() {
+            public void decode(ByteBuffer b, int off, int len) {
+                if (len < 8) { mDropped++; return; }
+                if (mListener != null) mListener.onArrow(b.getInt(off), b.getInt(off + 4));
+            }
+        };
+        mHandlers[Constants.ACCELERATION] = new Handler() {
+            public void decode(ByteBuffer b, int off, int len) {
+                if (len < 12) { mDropped++; return; }
+                if (mListener != null) mListener.onAcceleration(b.getFloat(off), b.getFloat(off + 4), b.getFloat(off + 8));
+            }
+        };
+        mHandlers[Constants.JOYSTICK] = new Handler() {
+            public void decode(ByteBuffer b, int off, int len) {
+                if (len < 16) { mDropped++; return; }
+                if (mListener != null) {
+                    mListener.onJoystick(b.getInt(off), b.getInt(off + 4), b.getInt(off + 8), b.getInt(off + 12));
+                }
+            }
+        };
+
+        mCompactHandlers[Constants.KEY_EVENT] = new CompactHandler() {
+            public int decode(ByteBuffer b, int action, int off, int len) {
+                start(off, len);
+                int scancode = readVarint(b);
+                int keycode = readVarint(b);
+                if (mPos > mEnd) return -1;
+                if (mListener != null) mListener.onKey(action, scancode, keycode);
+                return mPos - off;
+            }
+        };
+        mCompactHandlers[Constants.MOUSE_KEY] = new CompactHandler() {
+            public int decode(ByteBuffer b, int action, int off, int len) {
+                start(off, len);
+                int button = readVarint(b);
+                if (mPos > mEnd) return -1;
+                if (mListener != null) mListener.onMouseKey(action, button);
+                return mPos - off;
+            }
+        };
+        mCompactHandlers[Constants.MOUSE_MOTION] = new CompactHandler() {
+            public int decode(ByteBuffer b, int action, int off, int len) {
+                start(off, len);
+                int x = unzigzag(readVarint(b));
+                int y = unzigzag(readVarint(b));
+                if (mPos > mEnd) return -1;
+                if (mListener != null) mListener.onMouseMotion(action, x, y);
+                return mPos - off;
+            }
+        };
+        mCompactHandlers[Constants.ARROW_KEY] = new CompactHandler() {
+            public int decode(ByteBuffer b, int action, int off, int len) {
+                start(off, len);
+                int part = readVarint(b);
+                if (mPos > mEnd) return -1;
+                if (mListener != null) mListener.onArrow(action, part);
+                return mPos - off;
+            }
+        };
+        mCompactHandlers[Constants.ACCELERATION] = new CompactHandler() {
+            public int decode(ByteBuffer b, int action, int off, int len) {
+                if (action != AccelerationCodec.SAMPLE_ABSOLUTE) {
+                    AccelerationCodec.Decoder d = mAcceleration;
+                    int n = d.decode(b, action, off, len);
+                    if (n > 0 && d.hasValue() && mListener != null) {
+                        mListener.onAcceleration(d.x / EventEncoder.AXIS_SCALE,
+                                d.y / EventEncoder.AXIS_SCALE, d.z / EventEncoder.AXIS_SCALE);
+                    }
+                    return n;
+                }
+                if (len < 6) return -1;
+                if (mListener != null) {
+                    mListener.onAcceleration(b.getShort(off) / EventEncoder.AXIS_SCALE,
+                            b.getShort(off + 2) / EventEncoder.AXIS_SCALE,
+                            b.getShort(off + 4) / EventEncoder.AXIS_SCALE);
+                }
+                return 6;
+            }
+        };
+        mCompactHandlers[Constants.JOYSTICK] = new CompactHandler() {
+            public int decode(ByteBuffer b, int action, int off, int len) {
+                if (len < 1) return -1;
+                int bits = b.get(off) & 0xff;
+                start(off + 1, len - 1);
+                int x = unzigzag(readVarint(b));
+                int y = unzigzag(readVarint(b));
+                if (mPos > mEnd) return -1;
+                if (mListener != null) mListener.onJoystick(action, x, y, bits);
+                return mPos - off;
+            }
+        };
+        mCompactHandlers[Constants.JOYSTICK_SAMPLES] = new CompactHandler() {
+            public int decode(ByteBuffer b, int action, int off, int len) {
+                if (len < 1) return -1;
+                int bits = b.get(off) & 0xff;
+                start(off + 1, len - 1);
+                int count = readVarint(b);
+                // Every sample takes at least three bytes, which also keeps
+                // 3 * count from overflowing
+                if (count <= 0 || count > (mEnd - mPos) / 3) return -1;
+                // Walk the samples once to see they are all there, so a
+                // truncated event delivers none of them
+                int first = mPos;
+                for (int i = 0; i < 3 * count; i++) readVarint(b);
+                if (mPos > mEnd) return -1;
+                int end = mPos;
+                mPos = first;
+                int x = 0;
+                int y = 0;
+                for (int i = 0; i < count; i++) {
+                    int age = readVarint(b);
+                    x += unzigzag(readVarint(b));
+                    y += unzigzag(readVarint(b));
+                    if (mListener != null) mListener.onJoystickSample(x, y, bits, age);
+                }
+                return end - off;
+            }
+        };
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Return the state of the delta coded accelerometer stream. The host
+     * acknowledges {@link AccelerationCodec.Decoder#getLastSeq()}.
+     */
+    public AccelerationCodec.Decoder getAccelerationDecoder() {
+        return mAcceleration;
+    }
+
+    /**
+     * Install the handler for one event type, or null to ignore the type.
+     */
+    public void register(int type, Handler handler) {
+        if (type < 0 || type > MAX_TYPE) {
+            throw new IllegalArgumentException("event type out of range: " + type);
+        }
+        mHandlers[type] = handler;
+    }
+
+    /**
+     * Install the compact handler for one event type, or null to ignore the
+     * type. A compact payload is abandoned at the first unknown type.
+     */
+    public void registerCompact(int type, CompactHandler handler) {
+        if (type < 0 || type > MAX_TYPE) {
+            throw new IllegalArgumentException("event type out of range: " + type);
+        }
+        mCompactHandlers[type] = handler;
+    }
+
+    /**
+     * Decode one payload of the given frame data type.
+     */
+    public void decode(int dataType, byte[] buffer, int offset, int length) {
+        if (dataType == Constants.CONTROL_DATA_COMPACT) {
+            decodeCompact(buffer, offset, length);
+        } else {
+            decode(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Decode one CONTROL_DATA payload.
+     */
+    public void decode(byte[] buffer, int offset, int length) {
+        wrap(buffer);
+        if (length < 4) {
+            mDropped++;
+            return;
+        }
+        int type = mView.getInt(offset);
+        Handler h = (type >= 0 && type <= MAX_TYPE) ? mHandlers[type] : null;
+        if (h == null) {
+            mDropped++;
+            return;
+        }
+        mEvents++;
+        h.decode(mView, offset + 4, length - 4);
+    }
+
+    /**
+     * Decode every event of one CONTROL_DATA_COMPACT payload.
+     */
+    public void decodeCompact(byte[] buffer, int offset, int length) {
+        wrap(buffer);
+        int end = offset + length;
+        while (offset < end) {
+            int tag = buffer[offset] & 0xff;
+            CompactHandler h = mCompactHandlers[tag & 0x0f];
+            if (h == null) {
+                mDropped++;
+                return;
+            }
+            int n = h.decode(mView, tag >>> 4, offset + 1, end - offset - 1);
+            if (n < 0) {
+                mDropped++;
+                return;
+            }
+            mEvents++;
+            offset += 1 + n;
+        }
+    }
+
+    private void wrap(byte[] buffer) {
+        if (buffer != mArray) {
+            // Only happens when the receive buffer changes, not per event
+            mArray = buffer;
+            mView = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    private void start(int offset, int length) {
+        mPos = offset;
+        mEnd = offset + length;
+    }
+
+    /**
+     * Read an unsigned LEB128 varint at mPos. Running past mEnd leaves
+     * mPos > mEnd, which callers treat as a truncated event.
+     */
+    private int readVarint(ByteBuffer b) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (mPos >= mEnd) {
+                mPos = mEnd + 1;
+                return 0;
+            }
+            int c = b.get(mPos++);
+            v |= (c & 0x7f) << shift;
+            if ((c & 0x80) == 0) return v;
+        }
+        mPos = mEnd + 1;
+        return 0;
+    }
+
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Return the number of events dispatched. */
+    public long getEventCount() {
+        return mEvents;
+    }
+
+    /** Return the number of payloads that were too short or of unknown type. */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.android.BluetoothChat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds control event payloads in a reusable buffer. Nothing is allocated
+ * per event once the encoder exists.
+ *
+ * Two formats are available. {@link #FORMAT_LEGACY} is the big-endian int
+ * layout DataOutputStream produced and goes out as
+ * {@link Constants#CONTROL_DATA}. {@link #FORMAT_COMPACT} goes out as
+ * {@link Constants#CONTROL_DATA_COMPACT}: every event starts with one tag
+ * byte holding the event type in the low nibble and the action in the high
+ * nibble, followed by
+ *
+ * <pre>
+ *   KEY_EVENT     varint scancode, varint keycode
+ *   MOUSE_KEY     varint button
+ *   MOUSE_MOTION  zigzag varint x, zigzag varint y
+ *   ARROW_KEY     varint partition
+ *   ACCELERATION  x, y, z as 16-bit Q8.8 fixed point (1/256 m/s^2), or a
+ *                 keyframe or delta, see {@link AccelerationCodec}
+ *   JOYSTICK      byte bits, zigzag varint x, zigzag varint y
+ *   JOYSTICK_SAMPLES
+ *                 byte bits, varint count, then count times varint age,
+ *                 zigzag varint dx, zigzag varint dy
+ * </pre>
+ *
+ * Compact events are self-delimiting, so one payload may carry several.
+ * Bytes per event (payload / on the wire with a CRC frame):
+ *
+ * <pre>
+ *                      legacy    compact
+ *   KEY_EVENT ESC      16 / 24    3 / 11
+ *   KEY_EVENT UP       16 / 24    7 / 15   (keycode is scancode | 1 << 30)
+ *   MOUSE_KEY          16 / 24    2 / 10
+ *   MOUSE_MOTION       16 / 24    3-5 / 11-13 for |x|, |y| < 8192
+ *   ARROW_KEY          12 / 20    2 / 10
+ *   ACCELERATION       16 / 24    7 / 15
+ *     keyframe                        8 / 16
+ *     delta                           6-9 / 14-17, typically 6
+ *   JOYSTICK 8 bit     20 / 28    4-6 / 12-14
+ *   JOYSTICK 10 bit    20 / 28    4-8 / 12-16
+ *   JOYSTICK_SAMPLES      -       3 + 4-6 per sample
+ * </pre>
+ *
+ * JOYSTICK_SAMPLES packs the batched touch samples of one move, oldest
+ * first. The age of a sample is how many microseconds it was taken before
+ * the capture time of the frame, dx and dy are the change from the sample
+ * before, from 0 for the first.
+ *
+ * An encoder is confined to the thread that uses it (normally the UI
+ * thread). Typical use:
+ *
+ * <pre>
+ *   mEncoder.reset().putButton(Constants.KEY_EVENT, action, scancode, keycode);
+ *   mChatService.write(mEncoder.array(), 0, mEncoder.length(), mEncoder.getDataType());
+ * </pre>
+ */
+public final class EventEncoder {
+    // Wire formats
+    public static final int FORMAT_LEGACY = 0;
+    public static final int FORMAT_COMPACT = 1;
+
+    // Fixed point scale of compact axis values
+    public static final float AXIS_SCALE = 256f;
+
+    private final byte[] mBuffer;
+    private final ByteBuffer mView;
+    private int mFormat = FORMAT_LEGACY;
+
+    public EventEncoder() {
+        this(FrameCodec.MAX_PAYLOAD);
+    }
+
+    public EventEncoder(int capacity) {
+        mBuffer = new byte[capacity];
+        mView = ByteBuffer.wrap(mBuffer);
+    }
+
+    /**
+     * Select the wire format for the following payloads.
+     * @param format  FORMAT_LEGACY or FORMAT_COMPACT
+     */
+    public void setFormat(int format) {
+        if (format != FORMAT_LEGACY && format != FORMAT_COMPACT) {
+            throw new IllegalArgumentException("unknown format: " + format);
+        }
+        mFormat = format;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Return the frame data type matching the current format.
+     */
+    public int getDataType() {
+        return mFormat == FORMAT_COMPACT ? Constants.CONTROL_DATA_COMPACT : Constants.CONTROL_DATA;
+    }
+
+    /**
+     * Discard the encoded bytes and start a new payload.
+     */
+    public EventEncoder reset() {
+        mView.clear();
+        return this;
+    }
+
+    /**
+     * KEY_EVENT: head, action, scancode, keycode
+     * MOUSE_KEY: head, action, button, 0
+     */
+    public EventEncoder putButton(int head, int action, int code, int keycode) {
+        if (mFormat == FORMAT_COMPACT) {
+            putTag(head, action);
+            putVarint(code);
+            if (head != Constants.MOUSE_KEY) putVarint(keycode);
+            return this;
+        }
+        mView.putInt(head);
+        mView.putInt(action);
+        mView.putInt(code);
+        mView.putInt(keycode);
+        return this;
+    }
+
+    /**
+     * MOUSE_MOTION: head, action, x, y
+     */
+    public EventEncoder putMouseMotion(int action, int x, int y) {
+        if (mFormat == FORMAT_COMPACT) {
+            putTag(Constants.MOUSE_MOTION, action);
+            putVarint(zigzag(x));
+            putVarint(zigzag(y));
+            return this;
+        }
+        mView.putInt(Constants.MOUSE_MOTION);
+        mView.putInt(action);
+        mView.putInt(x);
+        mView.putInt(y);
+        return this;
+    }
+
+    /**
+     * ARROW_KEY: head, action, partition
+     */
+    public EventEncoder putArrow(int action, int part) {
+        if (mFormat == FORMAT_COMPACT) {
+            putTag(Constants.ARROW_KEY, action);
+            putVarint(part);
+            return this;
+        }
+        mView.putInt(Constants.ARROW_KEY);
+        mView.putInt(action);
+        mView.putInt(part);
+        return this;
+    }
+
+    /**
+     * ACCELERATION: head, x, y, z
+     */
+    public EventEncoder putAcceleration(float x, float y, float z) {
+        if (mFormat == FORMAT_COMPACT) {
+            putTag(Constants.ACCELERATION, 0);
+            mView.putShort(toFixed(x));
+            mView.putShort(toFixed(y));
+            mView.putShort(toFixed(z));
+            return this;
+        }
+        mView.putInt(Constants.ACCELERATION);
+        // Same canonical NaN handling as DataOutputStream.writeFloat
+        mView.putInt(Float.floatToIntBits(x));
+        mView.putInt(Float.floatToIntBits(y));
+        mView.putInt(Float.floatToIntBits(z));
+        return this;
+    }
+
+    /**
+     * JOYSTICK: head, action, x, y, bits. x and y are signed axis values of
+     * bits bits, see {@link PadStick}.
+     */
+    public EventEncoder putJoystick(int action, int x, int y, int bits) {
+        if (mFormat == FORMAT_COMPACT) {
+            putTag(Constants.JOYSTICK, action);
+            putByte(bits);
+            putVarint(zigzag(x));
+            putVarint(zigzag(y));
+            return this;
+        }
+        mView.putInt(Constants.JOYSTICK);
+        mView.putInt(action);
+        mView.putInt(x);
+        mView.putInt(y);
+        mView.putInt(bits);
+        return this;
+    }
+
+    /**
+     * JOYSTICK_SAMPLES: moves of a stick, oldest first. The legacy format
+     * has no multi-sample layout and gets the newest sample as a JOYSTICK
+     * move.
+     * @param ageMicros  Age of each sample before the capture time of the frame
+     */
+    public EventEncoder putJoystickSamples(int bits, int[] x, int[] y, int[] ageMicros, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("no samples");
+        }
+        if (mFormat != FORMAT_COMPACT) {
+            return putJoystick(InputEvent.ACTION_MOVE, x[count - 1], y[count - 1], bits);
+        }
+        putTag(Constants.JOYSTICK_SAMPLES, InputEvent.ACTION_MOVE);
+        putByte(bits);
+        putVarint(count);
+        int px = 0;
+        int py = 0;
+        for (int i = 0; i < count; i++) {
+            putVarint(ageMicros[i]);
+            putVarint(zigzag(x[i] - px));
+            putVarint(zigzag(y[i] - py));
+            px = x[i];
+            py = y[i];
+        }
+        return this;
+    }
+
+    void putTag(int type, int action) {
+        mView.put((byte) ((type & 0x0f) | (action << 4)));
+    }
+
+    void putByte(int v) {
+        mView.put((byte) v);
+    }
+
+    void putShort(int v) {
+        mView.putShort((short) v);
+    }
+
+    /**
+     * Append an unsigned LEB128 varint, 1 to 5 bytes.
+     */
+    void putVarint(int v) {
+        while ((v & ~0x7f) != 0) {
+            mView.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        mView.put((byte) v);
+    }
+
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    /**
+     * Convert to Q8.8, saturating at the 16-bit range.
+     */
+    static short toFixed(float v) {
+        int f = Math.round(v * AXIS_SCALE);
+        if (f > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (f < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) f;
+    }
+
+    /** Return the backing array, valid up to {@link #length()}. */
+    public byte[] array() {
+        return mBuffer;
+    }
+
+    /** Return the number of bytes encoded since the last reset. */
+    public int length() {
+        return mView.position();
+    }
+}
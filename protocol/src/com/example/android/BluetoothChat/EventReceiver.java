@@ -0,0 +1,315 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Host side of the control protocol, free of Android so a receiver on a PC
+ * can use it as is. It accepts connections from a {@link TransportFactory}
+ * and turns every frame PlayActivity sends into {@link InputEvent}s,
+ * or into the typed callbacks of {@link EventDecoder} for a caller that
+ * registers its own listener there.
+ *
+ * Decoding runs on the thread that calls {@link #serve()} or
+ * {@link #run(Transport)}, straight out of the reassembly buffer into one
+ * reused InputEvent, so a steady stream of events does not allocate. The
+ * receiver acknowledges the delta coded accelerometer stream, which keeps
+ * the controller's deltas short.
+ *
+ * <pre>
+ *   EventReceiver r = new EventReceiver(new TcpTransportFactory());
+ *   r.setListener(listener);
+ *   r.serve();
+ * </pre>
+ */
+public final class EventReceiver implements FrameCodec.FrameListener {
+    // Accelerometer samples between two acknowledgements
+    private static final int ACK_INTERVAL = 4;
+
+    /**
+     * Callbacks, all on the receiving thread.
+     */
+    public interface Listener {
+        public void onConnected(String name);
+        /** The event is reused for the next one, copy it to keep it. */
+        public void onEvent(InputEvent event);
+        public void onText(byte[] buffer, int offset, int length);
+        public void onDisconnected();
+    }
+
+    private final TransportFactory mTransports;
+    private final EventDecoder mDecoder = new EventDecoder();
+    private final FrameCodec.Reassembler mReassembler = new FrameCodec.Reassembler();
+    private final FrameCodec.SequenceTracker mSequence = new FrameCodec.SequenceTracker();
+    private final InputEvent mEvent = new InputEvent();
+    private Listener mListener;
+    private volatile boolean mClosed;
+    private volatile TransportFactory.Endpoint mEndpoint;
+    private volatile Transport mTransport;
+
+    // Acknowledgements go out on the connection being read
+    private OutputStream mOut;
+    private final byte[] mAck = new byte[2];
+    private final byte[] mAckFrame = new byte[FrameCodec.frameSize(2, true)];
+    private int mLastSeq = -1;
+    private int mUnacked;
+
+    private final EventDecoder.Listener mFill = new EventDecoder.Listener() {
+        public void onKey(int action, int scancode, int keycode) {
+            InputEvent e = mEvent;
+            e.type = action == InputEvent.ACTION_UP ? SDL2.EventType.KEYUP : SDL2.EventType.KEYDOWN;
+            e.code = Constants.KEY_EVENT;
+            e.action = action;
+            e.scancode = scancode;
+            e.keycode = keycode;
+            dispatch(e);
+        }
+
+        public void onMouseKey(int action, int button) {
+            InputEvent e = mEvent;
+            e.type = action == InputEvent.ACTION_UP
+                    ? SDL2.EventType.MOUSEBUTTONUP : SDL2.EventType.MOUSEBUTTONDOWN;
+            e.code = Constants.MOUSE_KEY;
+            e.action = action;
+            e.button = button;
+            dispatch(e);
+        }
+
+        public void onMouseMotion(int action, int x, int y) {
+            InputEvent e = mEvent;
+            e.type = SDL2.EventType.MOUSEMOTION;
+            e.code = Constants.MOUSE_MOTION;
+            e.action = action;
+            e.x = x;
+            e.y = y;
+            dispatch(e);
+        }
+
+        public void onArrow(int action, int part) {
+            InputEvent e = mEvent;
+            e.type = SDL2.EventType.USEREVENT;
+            e.code = Constants.ARROW_KEY;
+            e.action = action;
+            e.part = part;
+            dispatch(e);
+        }
+
+        public void onAcceleration(float x, float y, float z) {
+            InputEvent e = mEvent;
+            e.type = SDL2.EventType.SENSORUPDATE;
+            e.code = Constants.ACCELERATION;
+            e.action = InputEvent.ACTION_MOVE;
+            e.ax = x;
+            e.ay = y;
+            e.az = z;
+            dispatch(e);
+        }
+
+        public void onJoystick(int action, int x, int y, int bits) {
+            if (bits < 2 || bits > 16) return;
+            int max = (1 << (bits - 1)) - 1;
+            InputEvent e = mEvent;
+            e.type = SDL2.EventType.JOYAXISMOTION;
+            e.code = Constants.JOYSTICK;
+            e.action = action;
+            // SDL axis range, y pointing down like SDL joysticks
+            e.x = x * InputEvent.AXIS_MAX / max;
+            e.y = -y * InputEvent.AXIS_MAX / max;
+            dispatch(e);
+        }
+
+        public void onJoystickSample(int x, int y, int bits, int ageMicros) {
+            // Every sample gets its own capture time, the frame's is kept
+            // for the events after it
+            int stamp = mEvent.timestamp;
+            if (stamp != 0) mEvent.timestamp = stamp - ageMicros;
+            onJoystick(InputEvent.ACTION_MOVE, x, y, bits);
+            mEvent.timestamp = stamp;
+        }
+    };
+
+    /**
+     * @param transports  Where to accept connections, may be null if only
+     *  {@link #run(Transport)} or {@link #feed(byte[], int, int)} is used
+     */
+    public EventReceiver(TransportFactory transports) {
+        mTransports = transports;
+        mDecoder.setListener(mFill);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Return the decoder, e.g. to install a typed {@link EventDecoder.Listener}
+     * instead of receiving InputEvents, or to register new event types.
+     */
+    public EventDecoder getEventDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * Accept one connection after another and read each until it ends,
+     * until {@link #close()} is called.
+     */
+    public void serve() throws IOException {
+        while (!mClosed) {
+            TransportFactory.Endpoint endpoint = mTransports.listen(true);
+            if (endpoint == null) throw new IOException(mTransports.getName() + " cannot listen");
+            mEndpoint = endpoint;
+            Transport t;
+            try {
+                if (mClosed) return;
+                t = endpoint.accept();
+            } catch (IOException e) {
+                if (mClosed) return;
+                throw e;
+            } finally {
+                mEndpoint = null;
+                endpoint.close();
+            }
+            try {
+                run(t);
+            } catch (IOException e) {
+                // The connection is lost, wait for the next one
+                if (mClosed) return;
+            }
+        }
+    }
+
+    /**
+     * Read one connection until it ends. The transport is closed afterwards.
+     */
+    public void run(Transport transport) throws IOException {
+        mTransport = transport;
+        try {
+            transport.connect();
+            InputStream in = transport.getInputStream();
+            mOut = transport.getOutputStream();
+            reset();
+            Listener l = mListener;
+            if (l != null) l.onConnected(transport.getRemoteName());
+            try {
+                while (!mClosed && mReassembler.readFrom(in, this) >= 0) {
+                    // Frames went to onFrame()
+                }
+            } finally {
+                if (l != null) l.onDisconnected();
+            }
+        } finally {
+            mOut = null;
+            mTransport = null;
+            transport.close();
+        }
+    }
+
+    /**
+     * Decode bytes that were received some other way, e.g. recorded. Nothing
+     * is acknowledged.
+     */
+    public void feed(byte[] buffer, int offset, int length) {
+        mReassembler.feed(buffer, offset, length, this);
+    }
+
+    /**
+     * Forget the state of the last connection.
+     */
+    public void reset() {
+        mReassembler.reset();
+        mSequence.reset();
+        mDecoder.getAccelerationDecoder().reset();
+        mLastSeq = -1;
+        mUnacked = 0;
+    }
+
+    /**
+     * Stop {@link #serve()} or {@link #run(Transport)} from another thread.
+     */
+    public void close() {
+        mClosed = true;
+        TransportFactory.Endpoint endpoint = mEndpoint;
+        if (endpoint != null) {
+            try {
+                endpoint.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        Transport t = mTransport;
+        if (t != null) {
+            try {
+                t.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    public void onFrame(int type, int flags, byte[] buffer, int offset, int length) {
+        if ((flags & FrameCodec.FLAG_STAMP) != 0) {
+            mSequence.track(FrameCodec.getSequence(buffer, offset));
+            mEvent.timestamp = FrameCodec.getCaptureTime(buffer, offset);
+        } else {
+            mEvent.timestamp = 0;
+        }
+        switch (type) {
+        case Constants.TEXT_DATA:
+            Listener l = mListener;
+            if (l != null) l.onText(buffer, offset, length);
+            break;
+        case Constants.CONTROL_DATA:
+        case Constants.CONTROL_DATA_COMPACT:
+            mDecoder.decode(type, buffer, offset, length);
+            if (type == Constants.CONTROL_DATA_COMPACT) acknowledge();
+            break;
+        }
+    }
+
+    private void dispatch(InputEvent e) {
+        Listener l = mListener;
+        if (l != null) l.onEvent(e);
+    }
+
+    // Tell the controller which sample its next deltas may refer to
+    private void acknowledge() {
+        int seq = mDecoder.getAccelerationDecoder().getLastSeq();
+        if (seq < 0 || seq == mLastSeq) return;
+        mLastSeq = seq;
+        if (++mUnacked < ACK_INTERVAL) return;
+        OutputStream out = mOut;
+        if (out == null) return;
+        mAck[0] = Constants.ACCELERATION;
+        mAck[1] = (byte) seq;
+        int n = FrameCodec.encode(Constants.ACK_DATA, true, mAck, 0, 2, mAckFrame, 0);
+        try {
+            out.write(mAckFrame, 0, n);
+            out.flush();
+        } catch (IOException e) {
+            // The read loop sees the broken connection
+            return;
+        }
+        mUnacked = 0;
+    }
+
+    /** Return the number of frames decoded. */
+    public long getFrameCount() {
+        return mReassembler.getFrameCount();
+    }
+
+    /** Return the number of events delivered. */
+    public long getEventCount() {
+        return mDecoder.getEventCount();
+    }
+
+    /** Return the number of stamped frames that never arrived. */
+    public long getMissingFrames() {
+        return mSequence.getMissingCount();
+    }
+
+    /** Return the number of stamped frames that arrived after a newer one. */
+    public long getLateFrames() {
+        return mSequence.getLateCount();
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Frame layer for the Bluetooth byte stream. RFCOMM is free to split and
+ * merge writes, so every message goes out wrapped as
+ *
+ * <pre>
+ *   0xA5 0x5A | type | flags | length (2 bytes, big endian) | [stamp] | payload | [crc16]
+ * </pre>
+ *
+ * The type is one of the {@link Constants} data types. When {@link #FLAG_STAMP}
+ * is set the header is extended by a 16-bit sequence number, counted per
+ * connection, and the 32-bit capture time of the event in microseconds; the
+ * length still counts the payload only. When {@link #FLAG_CRC} is set the
+ * payload is followed by a CRC-16/CCITT over everything after the sync
+ * marker. A receiver that loses the frame boundary scans forward for the
+ * next sync marker instead of dropping the connection.
+ */
+public final class FrameCodec {
+    // Sync marker that starts every frame
+    public static final int SYNC0 = 0xA5;
+    public static final int SYNC1 = 0x5A;
+
+    // Header flags
+    public static final int FLAG_CRC = 0x01;
+    public static final int FLAG_STAMP = 0x02;
+    private static final int KNOWN_FLAGS = FLAG_CRC | FLAG_STAMP;
+
+    public static final int HEADER_SIZE = 6;
+    public static final int STAMP_SIZE = 6;
+    public static final int CRC_SIZE = 2;
+    public static final int MAX_PAYLOAD = 1024;
+    public static final int MAX_FRAME = HEADER_SIZE + STAMP_SIZE + MAX_PAYLOAD + CRC_SIZE;
+
+    private static final int[] CRC_TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC_TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private FrameCodec() {}
+
+    /**
+     * Receives the frames found by a {@link Reassembler}. The payload is only
+     * valid for the duration of the call; copy it if it has to outlive it.
+     */
+    public interface FrameListener {
+        public void onFrame(int type, int flags, byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * Write one frame into dst.
+     * @param type  The data type, see {@link Constants#TEXT_DATA}, {@link Constants#CONTROL_DATA}
+     * @param crc  Append a CRC-16 to the frame
+     * @return The number of bytes written to dst
+     */
+    public static int encode(int type, boolean crc, byte[] src, int offset, int length,
+            byte[] dst, int dstOffset) {
+        return encode(type, crc ? FLAG_CRC : 0, 0, 0, src, offset, length, dst, dstOffset);
+    }
+
+    /**
+     * Write one frame into dst.
+     * @param flags  {@link #FLAG_CRC} and/or {@link #FLAG_STAMP}
+     * @param seq  The sequence number, only written with FLAG_STAMP
+     * @param micros  The capture time in microseconds, only written with FLAG_STAMP
+     * @return The number of bytes written to dst
+     */
+    public static int encode(int type, int flags, int seq, int micros, byte[] src, int offset,
+            int length, byte[] dst, int dstOffset) {
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("payload too large: " + length);
+        }
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IllegalArgumentException("unknown flags: " + flags);
+        }
+        int p = dstOffset;
+        dst[p++] = (byte) SYNC0;
+        dst[p++] = (byte) SYNC1;
+        dst[p++] = (byte) type;
+        dst[p++] = (byte) flags;
+        dst[p++] = (byte) (length >>> 8);
+        dst[p++] = (byte) length;
+        if ((flags & FLAG_STAMP) != 0) {
+            dst[p++] = (byte) (seq >>> 8);
+            dst[p++] = (byte) seq;
+            dst[p++] = (byte) (micros >>> 24);
+            dst[p++] = (byte) (micros >>> 16);
+            dst[p++] = (byte) (micros >>> 8);
+            dst[p++] = (byte) micros;
+        }
+        System.arraycopy(src, offset, dst, p, length);
+        p += length;
+        if ((flags & FLAG_CRC) != 0) {
+            int c = crc16(dst, dstOffset + 2, p - dstOffset - 2);
+            dst[p++] = (byte) (c >>> 8);
+            dst[p++] = (byte) c;
+        }
+        return p - dstOffset;
+    }
+
+    /**
+     * Return the encoded size of a frame carrying length payload bytes.
+     */
+    public static int frameSize(int length, boolean crc) {
+        return HEADER_SIZE + length + (crc ? CRC_SIZE : 0);
+    }
+
+    /**
+     * Return the encoded size of a frame with the given flags carrying length
+     * payload bytes.
+     */
+    public static int frameSize(int length, int flags) {
+        return HEADER_SIZE + length
+                + ((flags & FLAG_STAMP) != 0 ? STAMP_SIZE : 0)
+                + ((flags & FLAG_CRC) != 0 ? CRC_SIZE : 0);
+    }
+
+    /**
+     * Return the sequence number of a frame received with {@link #FLAG_STAMP}.
+     * @param offset  The payload offset passed to {@link FrameListener#onFrame}
+     */
+    public static int getSequence(byte[] buffer, int offset) {
+        int p = offset - STAMP_SIZE;
+        return ((buffer[p] & 0xff) << 8) | (buffer[p + 1] & 0xff);
+    }
+
+    /**
+     * Return the capture time, in microseconds modulo 2^32, of a frame
+     * received with {@link #FLAG_STAMP}. Only differences are meaningful.
+     * @param offset  The payload offset passed to {@link FrameListener#onFrame}
+     */
+    public static int getCaptureTime(byte[] buffer, int offset) {
+        int p = offset - STAMP_SIZE + 2;
+        return ((buffer[p] & 0xff) << 24) | ((buffer[p + 1] & 0xff) << 16)
+                | ((buffer[p + 2] & 0xff) << 8) | (buffer[p + 3] & 0xff);
+    }
+    /**
+     * CRC-16/CCITT (poly 0x1021, init 0xFFFF).
+     */
+    public static int crc16(byte[] b, int offset, int length) {
+        int crc = 0xffff;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ b[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    /**
+     * Collects stream bytes and cuts them into frames. A single read may
+     * deliver any number of frames, or only part of one; the remainder is kept
+     * for the next read. Frames are handed out as views into the internal
+     * buffer, so steady-state decoding does not allocate.
+     *
+     * Not thread safe, it belongs to the thread reading the stream.
+     */
+    public static final class Reassembler {
+        private final byte[] mBuffer;
+        private int mStart;
+        private int mEnd;
+
+        // Statistics
+        private long mFrames;
+        private long mDiscarded;
+
+        public Reassembler() {
+            this(2 * MAX_FRAME);
+        }
+
+        public Reassembler(int capacity) {
+            if (capacity < MAX_FRAME) {
+                throw new IllegalArgumentException("capacity below one frame: " + capacity);
+            }
+            mBuffer = new byte[capacity];
+        }
+
+        /**
+         * Do one blocking read from the stream straight into the reassembly
+         * buffer and deliver every complete frame to the listener.
+         * @return The number of bytes read, or -1 at the end of the stream
+         */
+        public int readFrom(InputStream in, FrameListener listener) throws IOException {
+            compact();
+            int bytes = in.read(mBuffer, mEnd, mBuffer.length - mEnd);
+            if (bytes > 0) {
+                mEnd += bytes;
+                parse(listener);
+            }
+            return bytes;
+        }
+
+        /**
+         * Append bytes that were received some other way and deliver every
+         * complete frame to the listener.
+         */
+        public void feed(byte[] src, int offset, int length, FrameListener listener) {
+            while (length > 0) {
+                compact();
+                int n = Math.min(length, mBuffer.length - mEnd);
+                System.arraycopy(src, offset, mBuffer, mEnd, n);
+                mEnd += n;
+                offset += n;
+                length -= n;
+                parse(listener);
+            }
+        }
+
+        /**
+         * Drop any buffered partial frame, e.g. after reconnecting.
+         */
+        public void reset() {
+            mStart = mEnd = 0;
+        }
+
+        /** Return the number of frames delivered so far. */
+        public long getFrameCount() {
+            return mFrames;
+        }
+
+        /** Return the number of bytes skipped while hunting for a sync marker. */
+        public long getDiscardedBytes() {
+            return mDiscarded;
+        }
+
+        private void compact() {
+            if (mStart == mEnd) {
+                mStart = mEnd = 0;
+            } else if (mStart > 0 && mBuffer.length - mEnd < MAX_FRAME) {
+                System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+                mEnd -= mStart;
+                mStart = 0;
+            }
+        }
+
+        private void parse(FrameListener listener) {
+            final byte[] b = mBuffer;
+            while (mEnd - mStart >= HEADER_SIZE) {
+                int s = mStart;
+                if ((b[s] & 0xff) != SYNC0 || (b[s + 1] & 0xff) != SYNC1) {
+                    resync();
+                    continue;
+                }
+                int type = b[s + 2] & 0xff;
+                int flags = b[s + 3] & 0xff;
+                int length = ((b[s + 4] & 0xff) << 8) | (b[s + 5] & 0xff);
+                if (length > MAX_PAYLOAD || (flags & ~KNOWN_FLAGS) != 0) {
+                    resync();
+                    continue;
+                }
+                int total = frameSize(length, flags);
+                if (mEnd - s < total) {
+                    // Wait for the rest of the frame
+                    break;
+                }
+                if ((flags & FLAG_CRC) != 0) {
+                    int end = s + total - CRC_SIZE;
+                    int expected = ((b[end] & 0xff) << 8) | (b[end + 1] & 0xff);
+                    if (crc16(b, s + 2, end - s - 2) != expected) {
+                        resync();
+                        continue;
+                    }
+                }
+                mStart = s + total;
+                mFrames++;
+                int payload = s + HEADER_SIZE + ((flags & FLAG_STAMP) != 0 ? STAMP_SIZE : 0);
+                listener.onFrame(type, flags, b, payload, length);
+            }
+        }
+
+        // Skip the current byte and everything up to the next candidate sync byte
+        private void resync() {
+            int s = mStart + 1;
+            while (s < mEnd && (mBuffer[s] & 0xff) != SYNC0) s++;
+            mDiscarded += s - mStart;
+            mStart = s;
+        }
+    }
+
+    /**
+     * Follows the sequence numbers of stamped frames on the receiving side
+     * and counts frames that never arrived or arrived out of order.
+     */
+    public static final class SequenceTracker {
+        private int mExpected = -1;
+        private long mMissing;
+        private long mLate;
+
+        /**
+         * Account for one received sequence number.
+         * @return false if the frame is older than one already seen
+         */
+        public boolean track(int seq) {
+            seq &= 0xffff;
+            if (mExpected < 0) {
+                mExpected = (seq + 1) & 0xffff;
+                return true;
+            }
+            int d = (seq - mExpected) & 0xffff;
+            if (d < 0x8000) {
+                mMissing += d;
+                mExpected = (seq + 1) & 0xffff;
+                return true;
+            }
+            // Counted as missing when it was skipped, it is only late
+            mLate++;
+            if (mMissing > 0) mMissing--;
+            return false;
+        }
+
+        /** Forget the last sequence number, e.g. for a new connection. */
+        public void reset() {
+            mExpected = -1;
+        }
+
+        /** Return the number of sequence numbers skipped and not seen since. */
+        public long getMissingCount() {
+            return mMissing;
+        }
+
+        /** Return the number of frames that arrived after a newer one. */
+        public long getLateCount() {
+            return mLate;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * One decoded control event in the shape of an SDL_Event, as handed out by
+ * {@link EventReceiver}. The receiver fills in the same instance for every
+ * event, so a listener that keeps one must {@link #copyFrom(InputEvent)} it.
+ *
+ * Only the fields of the event's type are meaningful:
+ *
+ * <pre>
+ *   KEYDOWN, KEYUP                   scancode, keycode (SDL2.Scancode, SDL2.Keycode)
+ *   MOUSEBUTTONDOWN, MOUSEBUTTONUP   button (SDL2.Button)
+ *   MOUSEMOTION                      x, y
+ *   JOYAXISMOTION                    x, y of the analog pad in [-AXIS_MAX, AXIS_MAX], y down
+ *   SENSORUPDATE                     ax, ay, az in m/s^2
+ *   USEREVENT                        code = ARROW_KEY, action and part of the pad
+ * </pre>
+ */
+public final class InputEvent {
+    // Actions as sent by the controller, the values of MotionEvent
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_MOVE = 2;
+
+    // Full deflection of a JOYAXISMOTION axis, as SDL reports it
+    public static final int AXIS_MAX = 32767;
+
+    /** SDL2.EventType of the event. */
+    public int type;
+    /** Capture time on the controller in microseconds modulo 2^32, 0 if the frame was not stamped. */
+    public int timestamp;
+    /** Constants event type the event was decoded from. */
+    public int code;
+    /** Action as sent by the controller. */
+    public int action;
+    public int scancode;
+    public int keycode;
+    public int button;
+    public int x;
+    public int y;
+    public int part;
+    public float ax;
+    public float ay;
+    public float az;
+
+    public void copyFrom(InputEvent e) {
+        type = e.type;
+        timestamp = e.timestamp;
+        code = e.code;
+        action = e.action;
+        scancode = e.scancode;
+        keycode = e.keycode;
+        button = e.button;
+        x = e.x;
+        y = e.y;
+        part = e.part;
+        ax = e.ax;
+        ay = e.ay;
+        az = e.az;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+        case SDL2.EventType.KEYDOWN:
+        case SDL2.EventType.KEYUP:
+            return (type == SDL2.EventType.KEYDOWN ? "KEYDOWN" : "KEYUP")
+                    + " scancode=" + scancode + " keycode=" + keycode;
+        case SDL2.EventType.MOUSEBUTTONDOWN:
+        case SDL2.EventType.MOUSEBUTTONUP:
+            return (type == SDL2.EventType.MOUSEBUTTONDOWN ? "MOUSEBUTTONDOWN" : "MOUSEBUTTONUP")
+                    + " button=" + button;
+        case SDL2.EventType.MOUSEMOTION:
+            return "MOUSEMOTION x=" + x + " y=" + y;
+        case SDL2.EventType.JOYAXISMOTION:
+            return "JOYAXISMOTION action=" + action + " x=" + x + " y=" + y;
+        case SDL2.EventType.SENSORUPDATE:
+            return "SENSORUPDATE " + ax + " " + ay + " " + az;
+        default:
+            return "USEREVENT code=" + code + " action=" + action + " part=" + part;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * Latency from the moment an input happened to each stage of the outgoing
+ * pipeline, one {@link LatencyHistogram} per stage and event type:
+ *
+ * <pre>
+ *   STAGE_ENCODE       the event is encoded
+ *   STAGE_ENQUEUE      its frame is queued for the writer thread
+ *   STAGE_WRITE_START  the write carrying the frame is handed to the stream
+ *   STAGE_WRITE_END    that write returned
+ * </pre>
+ *
+ * The event type of a frame is the type of its first event, see
+ * {@link #eventType(int, byte[], int, int)}; text and unknown payloads count
+ * as type 0. The encode and enqueue stages are recorded by the thread that
+ * sends events, the write stages by the writer thread.
+ */
+public final class InputLatency {
+    public static final int STAGE_ENCODE = 0;
+    public static final int STAGE_ENQUEUE = 1;
+    public static final int STAGE_WRITE_START = 2;
+    public static final int STAGE_WRITE_END = 3;
+    public static final int STAGE_COUNT = 4;
+
+    private static final int TYPES = EventDecoder.MAX_TYPE + 1;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT * TYPES];
+
+    public InputLatency() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record that an event captured at captureMicros reached a stage at
+     * nowMicros. Both are microsecond clocks modulo 2^32, as carried in the
+     * frame stamp.
+     */
+    public void record(int stage, int eventType, int captureMicros, int nowMicros) {
+        mHistograms[stage * TYPES + eventType].record(nowMicros - captureMicros);
+    }
+
+    /**
+     * Return the histogram of one stage and event type.
+     */
+    public LatencyHistogram get(int stage, int eventType) {
+        if (eventType < 0 || eventType >= TYPES) {
+            throw new IllegalArgumentException("event type out of range: " + eventType);
+        }
+        return mHistograms[stage * TYPES + eventType];
+    }
+
+    /**
+     * Return the type of the first event in a payload, or 0 for text and
+     * anything that cannot be told.
+     */
+    public static int eventType(int dataType, byte[] buffer, int offset, int length) {
+        if (dataType == Constants.CONTROL_DATA_COMPACT && length >= 1) {
+            return buffer[offset] & 0x0f;
+        }
+        if (dataType == Constants.CONTROL_DATA && length >= 4 && buffer[offset] == 0
+                && buffer[offset + 1] == 0 && buffer[offset + 2] == 0) {
+            int type = buffer[offset + 3] & 0xff;
+            return type < TYPES ? type : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Return the current time on the capture clock, in microseconds modulo
+     * 2^32.
+     */
+    public static int now() {
+        return micros(System.nanoTime());
+    }
+
+    /**
+     * Convert a time in nanoseconds to the capture clock.
+     */
+    public static int micros(long nanos) {
+        return (int) (nanos / 1000);
+    }
+}
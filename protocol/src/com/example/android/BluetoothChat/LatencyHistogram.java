@@ -0,0 +1,111 @@
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of latencies in microseconds. Values below 16 get
+ * a bucket each; above that every power of two is split into 8 buckets, so
+ * a reported value is at most 12.5% above the one recorded. The range ends
+ * at 2^32 us (about 71 minutes), larger values land in the last bucket.
+ *
+ * Recording is a counter increment and never allocates. It must come from
+ * one thread at a time; any thread may take a {@link Snapshot} while it
+ * runs, without stopping the writer.
+ */
+public final class LatencyHistogram {
+    private static final int LINEAR = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    public static final int BUCKETS = LINEAR + (32 - 4) * SUB;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private volatile long mMax;
+
+    /**
+     * Count one latency. Negative values, e.g. from a clock step, count as 0.
+     */
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        int i = bucket(micros);
+        mCounts.lazySet(i, mCounts.get(i) + 1);
+        if (micros > mMax) mMax = micros;
+    }
+
+    /**
+     * Copy the current counts.
+     * @param into  A snapshot to reuse, or null to allocate one
+     */
+    public Snapshot snapshot(Snapshot into) {
+        Snapshot s = into != null ? into : new Snapshot();
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = mCounts.get(i);
+            s.mCounts[i] = c;
+            total += c;
+        }
+        s.mTotal = total;
+        s.mMax = mMax;
+        return s;
+    }
+
+    static int bucket(long v) {
+        if (v < LINEAR) return (int) v;
+        if (v >= 1L << 32) return BUCKETS - 1;
+        int m = 63 - Long.numberOfLeadingZeros(v);
+        int shift = m - SUB_BITS;
+        return LINEAR + (m - 4) * SUB + (int) (v >>> shift) - SUB;
+    }
+
+    // Largest value that falls into bucket i
+    static long highestValue(int i) {
+        if (i < LINEAR) return i;
+        int m = (i - LINEAR) / SUB + 4;
+        int top = (i - LINEAR) % SUB + SUB;
+        return ((long) (top + 1) << (m - SUB_BITS)) - 1;
+    }
+
+    /**
+     * A copy of the counts at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts = new long[BUCKETS];
+        private long mTotal;
+        private long mMax;
+
+        /** Return the number of values recorded. */
+        public long getCount() {
+            return mTotal;
+        }
+
+        /** Return the largest value recorded, in microseconds. */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * Return the value at or below which the given percentage of the
+         * recorded values fall, rounded up to the edge of its bucket.
+         * @param percentile  e.g. 99.9
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mTotal == 0) return 0;
+            long rank = (long) (percentile / 100 * mTotal + 0.5);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) return Math.min(highestValue(i), mMax);
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + mTotal
+                    + " p50=" + getValueAtPercentile(50) + "us"
+                    + " p99=" + getValueAtPercentile(99) + "us"
+                    + " p99.9=" + getValueAtPercentile(99.9) + "us"
+                    + " max=" + mMax + "us";
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-memory links within one process, for running the connection stack
+ * without a radio. A factory is a tiny network with a single listening
+ * endpoint: whoever shares the factory can connect to it, the address is
+ * ignored. Each direction is a bounded byte pipe, so a slow reader pushes
+ * back on the writer like a socket does.
+ */
+public class LoopbackTransportFactory implements TransportFactory {
+    private static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    private final int mPipeSize;
+    private final BlockingQueue<Transport> mPending = new LinkedBlockingQueue<Transport>();
+    private volatile boolean mListening;
+    // Wakes up accept() when the endpoint is closed
+    private final Transport mEndMarker = new LoopbackTransport(null, null, "closed", false);
+
+    public LoopbackTransportFactory() {
+        this(DEFAULT_PIPE_SIZE);
+    }
+
+    /**
+     * @param pipeSize  The bytes each direction buffers before write() blocks
+     */
+    public LoopbackTransportFactory(int pipeSize) {
+        mPipeSize = pipeSize;
+    }
+
+    public String getName() {
+        return "Loopback";
+    }
+
+    public Transport open(String address, boolean secure) {
+        return new LoopbackTransport(new Pipe(mPipeSize), new Pipe(mPipeSize), "loopback", true);
+    }
+
+    public Endpoint listen(boolean secure) {
+        // One endpoint per factory, like a port
+        if (!secure) return null;
+        mPending.clear();
+        mListening = true;
+        return new Endpoint() {
+            public Transport accept() throws IOException {
+                try {
+                    Transport t = mPending.take();
+                    if (t == mEndMarker) throw new IOException("endpoint closed");
+                    return t;
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            public void close() {
+                mListening = false;
+                mPending.offer(mEndMarker);
+            }
+        };
+    }
+
+    private class LoopbackTransport implements Transport {
+        private final Pipe mIn;
+        private final Pipe mOut;
+        private final String mName;
+        private final boolean mOutgoing;
+        private boolean mConnected;
+
+        LoopbackTransport(Pipe in, Pipe out, String name, boolean outgoing) {
+            mIn = in;
+            mOut = out;
+            mName = name;
+            mOutgoing = outgoing;
+        }
+
+        public synchronized void connect() throws IOException {
+            if (!mOutgoing || mConnected) return;
+            if (!mListening) throw new IOException("connection refused");
+            // The peer reads what we write and the other way round
+            mPending.offer(new LoopbackTransport(mOut, mIn, "loopback", false));
+            mConnected = true;
+        }
+
+        public InputStream getInputStream() {
+            return mIn.mInput;
+        }
+
+        public OutputStream getOutputStream() {
+            return mOut.mOutput;
+        }
+
+        public String getRemoteName() {
+            return mName;
+        }
+
+        public void close() {
+            // Like a socket, closing ends both directions for both sides
+            if (mIn != null) mIn.close();
+            if (mOut != null) mOut.close();
+        }
+    }
+
+    /**
+     * A bounded byte pipe between two threads.
+     */
+    static final class Pipe {
+        private final byte[] mBuffer;
+        private int mHead;
+        private int mCount;
+        private boolean mClosed;
+
+        final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int size) {
+            mBuffer = new byte[size];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            try {
+                while (mCount == 0) {
+                    if (mClosed) return -1;
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mHead = (mHead + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                while (len > 0) {
+                    if (mClosed) throw new IOException("pipe closed");
+                    if (mCount == mBuffer.length) {
+                        wait();
+                        continue;
+                    }
+                    int tail = (mHead + mCount) % mBuffer.length;
+                    int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - tail));
+                    System.arraycopy(b, off, mBuffer, tail, n);
+                    mCount += n;
+                    off += n;
+                    len -= n;
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
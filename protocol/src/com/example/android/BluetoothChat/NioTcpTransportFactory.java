@@ -0,0 +1,217 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TCP links over non-blocking NIO channels, for a host on the same Wi-Fi
+ * network. Addresses and ports work like {@link TcpTransportFactory}.
+ *
+ * Nagle's algorithm is off. Each direction stages its bytes in a direct
+ * buffer, so the channel hands them to the kernel without the JDK's
+ * temporary copy, and waits on its own selector when the socket is not
+ * ready, so the reading and the writing thread never block each other and
+ * close() wakes up both.
+ */
+public class NioTcpTransportFactory implements TransportFactory {
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    // Enough for a full WriteCombiner batch in one channel write
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final int mPort;
+
+    public NioTcpTransportFactory() {
+        this(TcpTransportFactory.DEFAULT_PORT);
+    }
+
+    /**
+     * @param port  The port to listen on and to connect to when the address
+     *  does not name one
+     */
+    public NioTcpTransportFactory(int port) {
+        mPort = port;
+    }
+
+    public String getName() {
+        return "TCP (NIO)";
+    }
+
+    public Transport open(String address, boolean secure) throws IOException {
+        InetSocketAddress server = TcpTransportFactory.parse(address, mPort);
+        return new NioTransport(SocketChannel.open(), server);
+    }
+
+    public Endpoint listen(boolean secure) throws IOException {
+        if (!secure) return null;
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(mPort));
+        return new Endpoint() {
+            public Transport accept() throws IOException {
+                // Accepting may block, the channel is made non-blocking after
+                return new NioTransport(server.accept(), null);
+            }
+
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    private static class NioTransport implements Transport {
+        private final SocketChannel mChannel;
+        private final InetSocketAddress mAddress;
+        private final Selector mReadSelector;
+        private final Selector mWriteSelector;
+        private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return NioTransport.this.read(b, off, len);
+            }
+        };
+
+        private final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                NioTransport.this.write(b, off, len);
+            }
+        };
+
+        /**
+         * @param address  The address to connect to, or null for an accepted channel
+         */
+        NioTransport(SocketChannel channel, InetSocketAddress address) throws IOException {
+            mChannel = channel;
+            mAddress = address;
+            mReadBuffer.limit(0);
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                mReadSelector = Selector.open();
+                mWriteSelector = Selector.open();
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public void connect() throws IOException {
+            if (mAddress == null) return;
+            try {
+                if (mChannel.connect(TcpTransportFactory.resolve(mAddress))) return;
+                SelectionKey key = mChannel.register(mWriteSelector, SelectionKey.OP_CONNECT);
+                long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+                while (!mChannel.finishConnect()) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) throw new SocketTimeoutException("connect timed out");
+                    mWriteSelector.select(left);
+                    mWriteSelector.selectedKeys().clear();
+                    if (!mChannel.isOpen()) throw new IOException("closed");
+                }
+                key.interestOps(0);
+            } catch (ClosedSelectorException e) {
+                throw new IOException("closed");
+            }
+        }
+
+        public InputStream getInputStream() {
+            return mInput;
+        }
+
+        public OutputStream getOutputStream() {
+            return mOutput;
+        }
+
+        public String getRemoteName() {
+            if (mAddress != null) return mAddress.getHostName() + ":" + mAddress.getPort();
+            return String.valueOf(mChannel.socket().getRemoteSocketAddress());
+        }
+
+        public void close() throws IOException {
+            try {
+                mChannel.close();
+            } finally {
+                // Wake up and end any thread waiting on the socket
+                mReadSelector.close();
+                mWriteSelector.close();
+            }
+        }
+
+        // Only called by the reading thread
+        private int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            ByteBuffer buffer = mReadBuffer;
+            try {
+                while (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int n = mChannel.read(buffer);
+                    buffer.flip();
+                    if (n < 0) return -1;
+                    if (n == 0) await(mReadSelector, SelectionKey.OP_READ);
+                }
+            } catch (ClosedSelectorException e) {
+                throw new IOException("closed");
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        // Only called by the writing thread
+        private void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = mWriteBuffer;
+            try {
+                while (len > 0) {
+                    int n = Math.min(len, buffer.capacity());
+                    buffer.clear();
+                    buffer.put(b, off, n);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        if (mChannel.write(buffer) == 0) {
+                            // The send buffer is full, wait until it drains
+                            await(mWriteSelector, SelectionKey.OP_WRITE);
+                        }
+                    }
+                    off += n;
+                    len -= n;
+                }
+            } catch (ClosedSelectorException e) {
+                throw new IOException("closed");
+            }
+        }
+
+        private void await(Selector selector, int op) throws IOException {
+            SelectionKey key = mChannel.keyFor(selector);
+            if (key == null) {
+                key = mChannel.register(selector, op);
+            } else {
+                key.interestOps(op);
+            }
+            selector.select();
+            selector.selectedKeys().clear();
+            if (!mChannel.isOpen()) throw new IOException("closed");
+        }
+    }
+}
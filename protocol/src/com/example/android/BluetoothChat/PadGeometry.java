@@ -0,0 +1,230 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * Partition math of a Pad, without the View around it: the pad is a
+ * circle split into equal sectors, numbered clockwise from 12 o'clock
+ * starting at 1, with part 0 for a small circle in the middle.
+ *
+ * A touch is classified by its pseudo-angle, a value that grows with the
+ * clockwise angle from 12 o'clock but takes a single division to compute
+ * (see {@link #pseudoAngle(double, double)}). setPartition() quantizes the
+ * pseudo-angle into a table of the sector each step starts in, plus the
+ * sector border falling inside the step, if any, so getPartition() is a
+ * squared-radius test, a division and a table lookup.
+ *
+ * getPartition(x, y, current) adds hysteresis for a finger that is
+ * already down: the current part holds on until the touch is a band of
+ * angle past its borders, or a band of radius past the center ring, so a
+ * finger resting on a border does not flip between two parts.
+ */
+public class PadGeometry {
+	private int centerX = -1;
+	private int centerY = -1;
+	private int radius = -1;
+	private int partition = 1;
+	private double[] vectorX = null;
+	private double[] vectorY = null;
+	private static final double centerPartSizeRatio = 0.28;
+	// squared radius of the center part
+	private double centerRadius2 = 0;
+	// pseudo-angle lookup: sector at the start of each step, and the
+	// pseudo-angle of the border inside the step or +inf
+	private static final int minSteps = 1024;
+	private int[] stepPart = null;
+	private double[] stepBorder = null;
+	private double stepScale = 0;
+	// hysteresis: angle in radians and fraction of the radius past a border
+	private double holdAngle = Math.toRadians(6);
+	private double holdRadius = 0.03;
+	private double centerEnter2 = 0;
+	private double centerLeave2 = 0;
+	// pseudo-angle range each sector holds on to, wrapping past 4 if lo > hi
+	private double[] holdLo = null;
+	private double[] holdHi = null;
+
+	public static double getCenterPartSizeRatio() { return centerPartSizeRatio; }
+
+	/**
+	 * Place the pad, in view coordinates. Keeps the number of partitions.
+	 */
+	public void setBounds(int centerX, int centerY, int radius) {
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.radius = radius;
+		setPartition(partition);
+	}
+
+	/**
+	 * Set how far past its borders the current part holds on.
+	 * @param degrees  Angle past a sector border
+	 * @param radiusRatio  Distance past the center ring, as a fraction of the radius
+	 */
+	public void setHysteresis(double degrees, double radiusRatio) {
+		holdAngle = Math.toRadians(Math.max(0, degrees));
+		holdRadius = Math.max(0, radiusRatio);
+		setPartition(partition);
+	}
+
+	public int getPartitionCount() { return partition; }
+	public int getCenterX() { return centerX; }
+	public int getCenterY() { return centerY; }
+	public int getRadius() { return radius; }
+	// Border vector of sector i, with y pointing up
+	public double getVectorX(int i) { return vectorX[i]; }
+	public double getVectorY(int i) { return vectorY[i]; }
+
+	public boolean setPartition(int n) {
+		int i;
+		double deg = 2*Math.PI / n;
+		if(n < 1)
+			return false;
+		// each border from its own angle, clockwise from 12 o'clock, so no
+		// rounding error builds up from one to the next
+		partition = n;
+		vectorX = new double[n+1];
+		vectorY = new double[n+1];
+		vectorX[0] = vectorX[n] = 0;
+		vectorY[0] = vectorY[n] = radius;
+		for(i = 1; i < n; i++) {
+			vectorX[i] = radius * Math.sin(i * deg);
+			vectorY[i] = radius * Math.cos(i * deg);
+		}
+		double r = centerPartSizeRatio * radius / 2;
+		centerRadius2 = r * r;
+		double band = holdRadius * radius;
+		double enter = Math.max(0, r - band);
+		centerEnter2 = enter * enter;
+		centerLeave2 = (r + band) * (r + band);
+		buildLookup(n, deg);
+		buildHold(n, deg);
+		//
+		return true;
+	}
+
+	private void buildLookup(int n, double deg) {
+		int i;
+		// at least 8 steps per sector, so no step holds two borders
+		int steps = Math.max(minSteps, Integer.highestOneBit(n) * 16);
+		stepPart = new int[steps];
+		stepBorder = new double[steps];
+		stepScale = steps / 4.0;
+		for(i = 0; i < steps; i++)
+			stepBorder[i] = Double.POSITIVE_INFINITY;
+		// borders 1..n-1 in pseudo-angle order, border 0 is at 0
+		int next = 1;
+		for(i = 0; i < steps; i++) {
+			double end = (i + 1) / stepScale;
+			stepPart[i] = next;
+			if(next < n) {
+				double border = pseudoAngle(Math.sin(next * deg), Math.cos(next * deg));
+				if(border < end) {
+					stepBorder[i] = border;
+					next++;
+				}
+			}
+		}
+	}
+
+	private void buildHold(int n, double deg) {
+		int k;
+		holdLo = new double[n+1];
+		holdHi = new double[n+1];
+		for(k = 1; k <= n; k++) {
+			if(deg + 2 * holdAngle >= 2*Math.PI) {
+				// holds on all around
+				holdLo[k] = 0;
+				holdHi[k] = 4;
+				continue;
+			}
+			double lo = (k-1) * deg - holdAngle;
+			double hi = k * deg + holdAngle;
+			holdLo[k] = pseudoAngle(Math.sin(lo), Math.cos(lo));
+			holdHi[k] = pseudoAngle(Math.sin(hi), Math.cos(hi));
+		}
+	}
+
+	/**
+	 * Return a value in [0, 4) that grows monotonically with the clockwise
+	 * angle of (x, y) from the y axis: each quadrant maps onto one unit by
+	 * the ratio of one coordinate to the sum of both, like the angle does by
+	 * the ratio to the radius.
+	 */
+	static double pseudoAngle(double x, double y) {
+		if(x >= 0 && y > 0)
+			return x / (x + y);
+		if(x > 0)
+			return 1 + -y / (x - y);
+		if(y < 0)
+			return 2 + -x / (-x - y);
+		if(x < 0)
+			return 3 + y / (y - x);
+		return 0;
+	}
+
+	public static double cross(double x1, double y1, double x2, double y2) {
+		return x1 * y2 - x2 * y1;
+	}
+
+	public static void getMidUnitVector(double x1, double y1, double x2, double y2, double[] ret) {
+		double nx, ny, len;
+		if(cross(x1, y1, x2, y2) == 0) {
+			// parallel, rotate 90 deg
+			nx = -y1;
+			ny = x1;
+		} else {
+			nx = (x1 + x2) / 2.0;
+			ny = (y1 + y2) / 2.0;
+		}
+		len = Math.sqrt(nx*nx + ny*ny);
+		ret[0] = (nx / len);
+		ret[1] = (ny / len);
+		return;
+	}
+
+	public int getPartition(float x, float y) {
+		if(stepPart == null)
+			return -1;
+		double vx = x - centerX;
+		double vy = centerY - y;
+		// click on center?
+		if(vx*vx + vy*vy < centerRadius2)
+			return 0;
+		return sectorOf(pseudoAngle(vx, vy));
+	}
+
+	/**
+	 * Classify a touch of a finger that is in part current, with
+	 * hysteresis. A current part out of range classifies without.
+	 */
+	public int getPartition(float x, float y, int current) {
+		if(current < 0 || current > partition)
+			return getPartition(x, y);
+		if(stepPart == null)
+			return -1;
+		double vx = x - centerX;
+		double vy = centerY - y;
+		double r2 = vx*vx + vy*vy;
+		if(r2 < (current == 0 ? centerLeave2 : centerEnter2))
+			return 0;
+		double q = pseudoAngle(vx, vy);
+		if(current > 0) {
+			double lo = holdLo[current];
+			double hi = holdHi[current];
+			if(lo <= hi ? (q >= lo && q < hi) : (q >= lo || q < hi))
+				return current;
+		}
+		return sectorOf(q);
+	}
+
+	// look up the sector of the step, then see if the pseudo-angle lies
+	// past a border inside the step
+	private int sectorOf(double q) {
+		int step = (int) (q * stepScale);
+		if(step >= stepPart.length)
+			step = stepPart.length - 1;
+		int part = stepPart[step];
+		if(q >= stepBorder[step])
+			part++;
+		return part;
+	}
+}
@@ -0,0 +1,92 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * Analog stick math of a Pad in analog mode, without the View around it:
+ * the touch offset from the center, as a fraction of the radius, becomes a
+ * vector of two signed integer axes.
+ *
+ * The offset is clamped to the unit circle, a radial deadzone is cut out
+ * of the middle and the rest rescaled to [0, 1], so the stick leaves the
+ * deadzone at the smallest step instead of jumping, then the magnitude goes
+ * through the response curve m^exponent. Each axis is rounded to bits-1
+ * bits plus sign, i.e. [-127, 127] or [-511, 511]. update() says whether the
+ * quantized value changed, so only changes need to go out.
+ */
+public class PadStick {
+	public static final int BITS_8 = 8;
+	public static final int BITS_10 = 10;
+	private double deadzone = 0.1;
+	private double exponent = 1.0;
+	private int bits = BITS_8;
+	private int max = (1 << (BITS_8 - 1)) - 1;
+	private int x = 0;
+	private int y = 0;
+
+	/**
+	 * @param fraction  Radius of the deadzone as a fraction of the pad radius, in [0, 1)
+	 */
+	public void setDeadzone(double fraction) {
+		if(fraction < 0 || fraction >= 1)
+			throw new IllegalArgumentException("deadzone out of range: " + fraction);
+		deadzone = fraction;
+	}
+
+	/**
+	 * @param exponent  Response curve, 1 is linear, larger is finer near the center
+	 */
+	public void setCurve(double exponent) {
+		if(!(exponent > 0))
+			throw new IllegalArgumentException("curve exponent out of range: " + exponent);
+		this.exponent = exponent;
+	}
+
+	/**
+	 * @param bits  Bits per axis, BITS_8 or BITS_10
+	 */
+	public void setBits(int bits) {
+		if(bits != BITS_8 && bits != BITS_10)
+			throw new IllegalArgumentException("unsupported axis bits: " + bits);
+		this.bits = bits;
+		max = (1 << (bits - 1)) - 1;
+	}
+
+	public double getDeadzone() { return deadzone; }
+	public double getCurve() { return exponent; }
+	public int getBits() { return bits; }
+	// Largest axis value, the smallest is -getMax()
+	public int getMax() { return max; }
+	public int getX() { return x; }
+	public int getY() { return y; }
+
+	/**
+	 * Map an offset from the center, in radii with y pointing up.
+	 * @return true if the quantized vector changed
+	 */
+	public boolean update(double dx, double dy) {
+		int qx = 0;
+		int qy = 0;
+		double m = Math.sqrt(dx*dx + dy*dy);
+		if(m > deadzone) {
+			double r = (Math.min(m, 1) - deadzone) / (1 - deadzone);
+			if(exponent != 1)
+				r = Math.pow(r, exponent);
+			// direction of the offset, length of the response
+			double s = r * max / m;
+			qx = (int) Math.round(dx * s);
+			qy = (int) Math.round(dy * s);
+		}
+		if(qx == x && qy == y)
+			return false;
+		x = qx;
+		y = qy;
+		return true;
+	}
+
+	/**
+	 * Center the stick.
+	 * @return true if it was not centered
+	 */
+	public boolean reset() {
+		return update(0, 0);
+	}
+}
@@ -2,6 +2,16 @@ package com.example.android.BluetoothChat;
 
 public class SDL2 {
 
+	class EventType {
+		public static final int KEYDOWN = 0x300;
+		public static final int KEYUP = 0x301;
+		public static final int MOUSEMOTION = 0x400;
+		public static final int MOUSEBUTTONDOWN = 0x401;
+		public static final int MOUSEBUTTONUP = 0x402;
+		public static final int JOYAXISMOTION = 0x600;
+		public static final int SENSORUPDATE = 0x1200;
+		public static final int USEREVENT = 0x8000;
+	}
 	class Button {
 		public static final int LEFT = 1;
 		public static final int MIDDLE = 2;
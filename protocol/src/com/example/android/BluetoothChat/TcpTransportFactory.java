@@ -0,0 +1,120 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Plain TCP links, addressed as host or host:port. Nagle's algorithm is
+ * turned off, a control frame should not wait for the next one. TCP has no
+ * insecure variant, so only the secure endpoint exists.
+ */
+public class TcpTransportFactory implements TransportFactory {
+    public static final int DEFAULT_PORT = 7345;
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private final int mPort;
+
+    public TcpTransportFactory() {
+        this(DEFAULT_PORT);
+    }
+
+    /**
+     * @param port  The port to listen on and to connect to when the address
+     *  does not name one
+     */
+    public TcpTransportFactory(int port) {
+        mPort = port;
+    }
+
+    public String getName() {
+        return "TCP";
+    }
+
+    public Transport open(String address, boolean secure) throws IOException {
+        return new TcpTransport(new Socket(), parse(address, mPort));
+    }
+
+    public Endpoint listen(boolean secure) throws IOException {
+        if (!secure) return null;
+        final ServerSocket server = new ServerSocket(mPort);
+        return new Endpoint() {
+            public Transport accept() throws IOException {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                return new TcpTransport(socket, null);
+            }
+
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    /**
+     * Split host:port, using defaultPort if there is no port.
+     * @throws IOException if the port is not a number or out of range, so a
+     *  typed address fails like a connection instead of crashing the caller
+     */
+    static InetSocketAddress parse(String address, int defaultPort) throws IOException {
+        int colon = address.lastIndexOf(':');
+        String host = address;
+        int port = defaultPort;
+        // No port, or a bare IPv6 address
+        if (colon >= 0 && address.indexOf(':') == colon) {
+            host = address.substring(0, colon);
+            try {
+                port = Integer.parseInt(address.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("bad port in address: " + address);
+            }
+        }
+        if (host.length() == 0 || port < 0 || port > 0xffff) {
+            throw new IOException("bad address: " + address);
+        }
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    static InetSocketAddress resolve(InetSocketAddress address) {
+        // Resolving may block, so it waits for connect()
+        return address.isUnresolved()
+                ? new InetSocketAddress(address.getHostName(), address.getPort()) : address;
+    }
+
+    private static class TcpTransport implements Transport {
+        private final Socket mSocket;
+        private final InetSocketAddress mAddress;
+
+        TcpTransport(Socket socket, InetSocketAddress address) {
+            mSocket = socket;
+            mAddress = address;
+        }
+
+        public void connect() throws IOException {
+            if (mAddress == null) return;
+            mSocket.setTcpNoDelay(true);
+            mSocket.connect(resolve(mAddress), CONNECT_TIMEOUT_MS);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        public String getRemoteName() {
+            if (mAddress != null) return mAddress.getHostName() + ":" + mAddress.getPort();
+            return String.valueOf(mSocket.getRemoteSocketAddress());
+        }
+
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
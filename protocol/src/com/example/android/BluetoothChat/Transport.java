@@ -0,0 +1,34 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One byte-stream link to a remote device, as used by
+ * BluetoothChatService. A transport comes either unconnected from
+ * {@link TransportFactory#open(String, boolean)} or already connected from
+ * {@link TransportFactory.Endpoint#accept()}.
+ */
+public interface Transport {
+    /**
+     * Establish the link. This is a blocking call that returns on success or
+     * throws; {@link #close()} from another thread aborts it. Does nothing
+     * if the transport is already connected.
+     */
+    public void connect() throws IOException;
+
+    public InputStream getInputStream() throws IOException;
+
+    public OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Return a name for the remote side that can be shown to the user.
+     */
+    public String getRemoteName();
+
+    /**
+     * Close the link, unblocking any thread in connect(), read or write.
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,43 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+
+/**
+ * Creates the {@link Transport}s of one kind of link, e.g. RFCOMM or TCP.
+ * Addresses are in the format of the link, e.g. a Bluetooth MAC address or
+ * host:port.
+ */
+public interface TransportFactory {
+    /**
+     * A listening endpoint, the server side of a link.
+     */
+    public interface Endpoint {
+        /**
+         * Wait for the next incoming connection. This is a blocking call;
+         * {@link #close()} from another thread aborts it.
+         * @return A connected transport
+         */
+        public Transport accept() throws IOException;
+
+        public void close() throws IOException;
+    }
+
+    /**
+     * Return a short name of the link for logs, e.g. "RFCOMM".
+     */
+    public String getName();
+
+    /**
+     * Create a transport to the given address, not yet connected.
+     * @param secure  Ask for an authenticated and encrypted link where the
+     *  link has the choice
+     */
+    public Transport open(String address, boolean secure) throws IOException;
+
+    /**
+     * Start listening for incoming connections.
+     * @param secure  The kind of link to accept, see {@link #open(String, boolean)}
+     * @return The endpoint, or null if the link does not offer this kind
+     */
+    public Endpoint listen(boolean secure) throws IOException;
+}
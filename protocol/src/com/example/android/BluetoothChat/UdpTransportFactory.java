@@ -0,0 +1,682 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * UDP links with two channels over one socket, addressed like
+ * {@link TcpTransportFactory}. Frames of continuous input (acceleration,
+ * mouse motion, analog stick moves) go out as plain datagrams: a lost one is
+ * simply replaced by the next. Key, button and pad frames, the stick's DOWN
+ * and UP, text and anything else travel on a reliable channel that numbers
+ * its datagrams, delivers them in order and retransmits what the selective
+ * acknowledgements report missing. A lost sample therefore never holds up
+ * a button release, which is what a single stream does.
+ *
+ * <pre>
+ *   DATA       0x01 | frames
+ *   RELIABLE   0x02 | seq (2 bytes) | frames
+ *   ACK        0x03 | next expected seq (2 bytes) | bitmap of the 32 seqs after it (4 bytes)
+ *   BYE        0x04
+ *   HELLO      0x10 | 'B' 'C' | nonce (4 bytes)
+ *   HELLO_ACK  0x11 | 'B' 'C' | nonce (4 bytes)
+ * </pre>
+ *
+ * A client sends HELLO to the listening port until a HELLO_ACK comes back
+ * from the session socket the server opened for it. The HELLO_ACK may be
+ * lost, so an endpoint closed right after accept() keeps answering that
+ * client's HELLO until the session hears from it, and the next endpoint
+ * takes that listening socket over. Every write must hold whole frames,
+ * which is what the app's WriteCombiner writes. Retransmissions,
+ * acknowledgements and keepalives are driven by the reading thread, so the
+ * input stream has to be read continuously, as ConnectedThread does.
+ */
+public class UdpTransportFactory implements TransportFactory {
+    private static final int DATA = 0x01;
+    private static final int RELIABLE = 0x02;
+    private static final int ACK = 0x03;
+    private static final int BYE = 0x04;
+    private static final int HELLO = 0x10;
+    private static final int HELLO_ACK = 0x11;
+    private static final int HELLO_SIZE = 7;
+
+    // Largest datagram, stays below a typical Wi-Fi path MTU
+    static final int MAX_DATAGRAM = 1400;
+    private static final int RELIABLE_HEADER = 3;
+    // Reliable datagrams in flight, also the reorder window of the receiver
+    static final int WINDOW = 32;
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int HELLO_INTERVAL_MS = 250;
+    private static final long MIN_RTO_MS = 20;
+    private static final long MAX_RTO_MS = 500;
+    private static final long KEEPALIVE_MS = 1000;
+    private static final long PEER_TIMEOUT_MS = 5000;
+
+    private final int mPort;
+    private final Random mRandom = new Random();
+
+    // The listening socket outlives a closed endpoint while the session it
+    // accepted last waits for its client, and the next endpoint reuses it.
+    // All of this is guarded by the factory.
+    private DatagramSocket mListener;
+    private boolean mListening;
+    private Thread mLinger;
+    // Set while listen() takes the socket over from mLinger
+    private boolean mHandover;
+    // The last session, to answer a HELLO whose HELLO_ACK was lost
+    private SocketAddress mLastPeer;
+    private int mLastNonce;
+    private UdpTransport mLast;
+
+    public UdpTransportFactory() {
+        this(TcpTransportFactory.DEFAULT_PORT);
+    }
+
+    /**
+     * @param port  The port to listen on and to connect to when the address
+     *  does not name one
+     */
+    public UdpTransportFactory(int port) {
+        mPort = port;
+    }
+
+    public String getName() {
+        return "UDP";
+    }
+
+    public Transport open(String address, boolean secure) throws IOException {
+        InetSocketAddress server = TcpTransportFactory.parse(address, mPort);
+        return new UdpTransport(new DatagramSocket(), server, mRandom.nextInt());
+    }
+
+    public Endpoint listen(boolean secure) throws IOException {
+        if (!secure) return null;
+        final DatagramSocket listener = takeListener();
+        return new Endpoint() {
+            private final byte[] mBuffer = new byte[MAX_DATAGRAM];
+            private boolean mAccepting;
+            private boolean mClosed;
+
+            public Transport accept() throws IOException {
+                synchronized (this) {
+                    if (mClosed) throw new SocketException("closed");
+                    mAccepting = true;
+                }
+                try {
+                    return receiveHello(listener, mBuffer);
+                } finally {
+                    synchronized (this) {
+                        mAccepting = false;
+                    }
+                }
+            }
+
+            public void close() {
+                boolean accepting;
+                synchronized (this) {
+                    if (mClosed) return;
+                    mClosed = true;
+                    accepting = mAccepting;
+                }
+                releaseListener(listener, accepting);
+            }
+        };
+    }
+
+    /**
+     * Return the listening socket, the one a closed endpoint left answering
+     * its last client if there is one. It is bound to mPort, so binding a
+     * new one while it lingers would fail.
+     */
+    private DatagramSocket takeListener() throws IOException {
+        Thread linger;
+        synchronized (this) {
+            if (mListening) throw new BindException("already listening on " + mPort);
+            mHandover = true;
+            linger = mLinger;
+        }
+        // It checks mHandover at least every HELLO_INTERVAL_MS
+        if (linger != null) {
+            try {
+                linger.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted taking over the listener");
+            }
+        }
+        synchronized (this) {
+            mHandover = false;
+            mLinger = null;
+            if (mListening) throw new BindException("already listening on " + mPort);
+            if (mListener == null) mListener = new DatagramSocket(mPort);
+            mListener.setSoTimeout(0);
+            mListening = true;
+            return mListener;
+        }
+    }
+
+    private synchronized void releaseListener(final DatagramSocket listener, boolean accepting) {
+        mListening = false;
+        final UdpTransport last = accepting ? null : mLast;
+        if (last == null || !last.awaitsPeer()) {
+            listener.close();
+            mListener = null;
+            return;
+        }
+        // The caller stops accepting once it has a session, but the client
+        // only learns of it from a HELLO_ACK that may be lost. Started under
+        // the lock, so listen() cannot miss it and bind a second socket.
+        mLinger = new Thread("UdpLinger") {
+            public void run() {
+                byte[] buffer = new byte[MAX_DATAGRAM];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                long deadline = now() + CONNECT_TIMEOUT_MS;
+                try {
+                    listener.setSoTimeout(HELLO_INTERVAL_MS);
+                    while (now() < deadline && last.awaitsPeer()) {
+                        synchronized (UdpTransportFactory.this) {
+                            if (mHandover) return;
+                        }
+                        try {
+                            listener.receive(packet);
+                        } catch (SocketTimeoutException e) {
+                            continue;
+                        }
+                        if (isHello(buffer, packet.getLength(), HELLO)) {
+                            answerRepeated(packet.getSocketAddress(), readInt(buffer, 3));
+                        }
+                    }
+                } catch (IOException e) {
+                    // Done answering
+                } finally {
+                    synchronized (UdpTransportFactory.this) {
+                        // A new endpoint takes the socket over as it is
+                        if (!mHandover) {
+                            listener.close();
+                            mListener = null;
+                        }
+                    }
+                }
+            }
+        };
+        mLinger.setDaemon(true);
+        mLinger.start();
+    }
+
+    private Transport receiveHello(DatagramSocket listener, byte[] buffer) throws IOException {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            listener.receive(packet);
+            if (!isHello(buffer, packet.getLength(), HELLO)) continue;
+            int nonce = readInt(buffer, 3);
+            SocketAddress peer = packet.getSocketAddress();
+            if (answerRepeated(peer, nonce)) continue;
+            DatagramSocket session = new DatagramSocket();
+            session.connect(peer);
+            UdpTransport t = new UdpTransport(session, null, nonce);
+            t.sendHello(HELLO_ACK, nonce);
+            synchronized (this) {
+                mLastPeer = peer;
+                mLastNonce = nonce;
+                mLast = t;
+            }
+            return t;
+        }
+    }
+
+    // Answer the client of the last session again if this is its HELLO
+    private boolean answerRepeated(SocketAddress peer, int nonce) throws IOException {
+        UdpTransport last;
+        synchronized (this) {
+            if (mLast == null || nonce != mLastNonce || !peer.equals(mLastPeer)) return false;
+            last = mLast;
+        }
+        last.sendHello(HELLO_ACK, nonce);
+        return true;
+    }
+
+    static boolean isHello(byte[] b, int length, int kind) {
+        return length == HELLO_SIZE && (b[0] & 0xff) == kind && b[1] == 'B' && b[2] == 'C';
+    }
+
+    static int readInt(byte[] b, int p) {
+        return ((b[p] & 0xff) << 24) | ((b[p + 1] & 0xff) << 16)
+                | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+    }
+
+    static void writeInt(byte[] b, int p, int v) {
+        b[p] = (byte) (v >>> 24);
+        b[p + 1] = (byte) (v >>> 16);
+        b[p + 2] = (byte) (v >>> 8);
+        b[p + 3] = (byte) v;
+    }
+
+    /**
+     * Return true if a frame belongs on the reliable channel, i.e. it is not
+     * a sample that the next one replaces.
+     */
+    static boolean isReliable(int dataType, byte[] buffer, int offset, int length) {
+        if (dataType != Constants.CONTROL_DATA && dataType != Constants.CONTROL_DATA_COMPACT) {
+            return dataType != Constants.ACK_DATA;
+        }
+        int event = InputLatency.eventType(dataType, buffer, offset, length);
+        if (event == Constants.JOYSTICK || event == Constants.JOYSTICK_SAMPLES) {
+            return action(dataType, buffer, offset, length) != InputEvent.ACTION_MOVE;
+        }
+        return event != Constants.ACCELERATION && event != Constants.MOUSE_MOTION;
+    }
+
+    // Action of the event at offset, whose type eventType() already read
+    private static int action(int dataType, byte[] buffer, int offset, int length) {
+        if (dataType == Constants.CONTROL_DATA_COMPACT) {
+            return (buffer[offset] & 0xff) >>> 4;
+        }
+        return length >= 8 ? readInt(buffer, offset + 4) : -1;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static class UdpTransport implements Transport {
+        private final DatagramSocket mSocket;
+        private final InetSocketAddress mAddress;
+        private final int mNonce;
+
+        // Writing thread: datagrams being filled, one per channel
+        private final byte[] mData = new byte[MAX_DATAGRAM];
+        private int mDataLength;
+        private final byte[] mReliable = new byte[MAX_DATAGRAM];
+        private int mReliableLength;
+        private final DatagramPacket mWritePacket = new DatagramPacket(mData, 0);
+
+        // Send window, guarded by itself
+        private final Object mWindow = new Object();
+        private final byte[][] mSlots = new byte[WINDOW][MAX_DATAGRAM];
+        private final int[] mSlotLength = new int[WINDOW];
+        private final long[] mSlotSent = new long[WINDOW];
+        private final boolean[] mSlotAcked = new boolean[WINDOW];
+        private final boolean[] mSlotResent = new boolean[WINDOW];
+        private int mBase;
+        private int mNext;
+        private long mSrtt = 50;
+        private boolean mClosed;
+        private final DatagramPacket mResendPacket = new DatagramPacket(mData, 0);
+
+        // Reading thread: receive buffer, reorder window and bytes ready to read
+        private final byte[] mIn = new byte[MAX_DATAGRAM];
+        private final DatagramPacket mReadPacket = new DatagramPacket(mIn, MAX_DATAGRAM);
+        private final byte[][] mHeld = new byte[WINDOW][MAX_DATAGRAM];
+        private final int[] mHeldLength = new int[WINDOW];
+        private int mExpected;
+        private final byte[] mReady = new byte[(WINDOW + 1) * MAX_DATAGRAM];
+        private int mReadyStart;
+        private int mReadyEnd;
+        private final byte[] mControl = new byte[HELLO_SIZE];
+        private final DatagramPacket mControlPacket = new DatagramPacket(mControl, 0);
+        private long mLastReceived;
+        private volatile long mLastSent;
+        // Set by the reading thread once anything came from the peer
+        private volatile boolean mHeard;
+
+        private final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return UdpTransport.this.read(b, off, len);
+            }
+        };
+
+        private final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("write whole frames");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                UdpTransport.this.write(b, off, len);
+            }
+        };
+
+        /**
+         * @param address  The listening address to connect to, or null for
+         *  an accepted session socket
+         */
+        UdpTransport(DatagramSocket socket, InetSocketAddress address, int nonce) {
+            mSocket = socket;
+            mAddress = address;
+            mNonce = nonce;
+            mLastReceived = now();
+        }
+
+        public void connect() throws IOException {
+            if (mAddress == null) return;
+            SocketAddress server = TcpTransportFactory.resolve(mAddress);
+            DatagramPacket hello = new DatagramPacket(new byte[HELLO_SIZE], HELLO_SIZE, server);
+            hello.getData()[0] = (byte) HELLO;
+            hello.getData()[1] = 'B';
+            hello.getData()[2] = 'C';
+            writeInt(hello.getData(), 3, mNonce);
+            long deadline = now() + CONNECT_TIMEOUT_MS;
+            mSocket.setSoTimeout(HELLO_INTERVAL_MS);
+            while (now() < deadline) {
+                mSocket.send(hello);
+                try {
+                    mSocket.receive(mReadPacket);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (isHello(mIn, mReadPacket.getLength(), HELLO_ACK) && readInt(mIn, 3) == mNonce) {
+                    // The server answers from the socket of our session
+                    mSocket.connect(mReadPacket.getSocketAddress());
+                    mLastReceived = now();
+                    mHeard = true;
+                    return;
+                }
+            }
+            throw new SocketTimeoutException("no answer from " + mAddress);
+        }
+
+        public InputStream getInputStream() {
+            return mInput;
+        }
+
+        public OutputStream getOutputStream() {
+            return mOutput;
+        }
+
+        public String getRemoteName() {
+            if (mAddress != null) return mAddress.getHostName() + ":" + mAddress.getPort();
+            return String.valueOf(mSocket.getRemoteSocketAddress());
+        }
+
+        public void close() {
+            synchronized (mWindow) {
+                if (mClosed) return;
+                mClosed = true;
+                mWindow.notifyAll();
+            }
+            if (mSocket.isConnected()) {
+                try {
+                    // Not mControl, the reading thread may be sending an ACK
+                    byte[] bye = { (byte) BYE };
+                    send(new DatagramPacket(bye, 1), bye, 1);
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            mSocket.close();
+        }
+
+        /**
+         * Return true for an accepted session that has not heard from its
+         * client yet, whose HELLO_ACK may thus have been lost.
+         */
+        boolean awaitsPeer() {
+            synchronized (mWindow) {
+                if (mClosed) return false;
+            }
+            return !mHeard;
+        }
+
+        void sendHello(int kind, int nonce) throws IOException {
+            byte[] b = new byte[HELLO_SIZE];
+            b[0] = (byte) kind;
+            b[1] = 'B';
+            b[2] = 'C';
+            writeInt(b, 3, nonce);
+            mSocket.send(new DatagramPacket(b, HELLO_SIZE));
+        }
+
+        private void send(DatagramPacket packet, byte[] buffer, int length) throws IOException {
+            packet.setData(buffer, 0, length);
+            mSocket.send(packet);
+            mLastSent = now();
+        }
+
+        // Writing thread
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            mDataLength = 1;
+            mReliableLength = RELIABLE_HEADER;
+            while (off < end) {
+                if (end - off < FrameCodec.HEADER_SIZE || (b[off] & 0xff) != FrameCodec.SYNC0
+                        || (b[off + 1] & 0xff) != FrameCodec.SYNC1) {
+                    throw new IOException("write whole frames");
+                }
+                int type = b[off + 2] & 0xff;
+                int flags = b[off + 3] & 0xff;
+                int length = ((b[off + 4] & 0xff) << 8) | (b[off + 5] & 0xff);
+                int size = FrameCodec.frameSize(length, flags);
+                if (size > end - off) throw new IOException("write whole frames");
+                int payload = off + size - length
+                        - ((flags & FrameCodec.FLAG_CRC) != 0 ? FrameCodec.CRC_SIZE : 0);
+                if (isReliable(type, b, payload, length)) {
+                    if (mReliableLength + size > MAX_DATAGRAM) sendReliable();
+                    System.arraycopy(b, off, mReliable, mReliableLength, size);
+                    mReliableLength += size;
+                } else {
+                    if (mDataLength + size > MAX_DATAGRAM) sendData();
+                    System.arraycopy(b, off, mData, mDataLength, size);
+                    mDataLength += size;
+                }
+                off += size;
+            }
+            // Transitions first, they are what the user waits for
+            if (mReliableLength > RELIABLE_HEADER) sendReliable();
+            if (mDataLength > 1) sendData();
+        }
+
+        private void sendData() throws IOException {
+            mData[0] = (byte) DATA;
+            send(mWritePacket, mData, mDataLength);
+            mDataLength = 1;
+        }
+
+        private void sendReliable() throws IOException {
+            synchronized (mWindow) {
+                try {
+                    while (((mNext - mBase) & 0xffff) >= WINDOW && !mClosed) {
+                        // Every slot is in flight, wait for an acknowledgement
+                        mWindow.wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (mClosed) throw new IOException("closed");
+                int seq = mNext;
+                int i = seq % WINDOW;
+                byte[] slot = mSlots[i];
+                System.arraycopy(mReliable, RELIABLE_HEADER, slot, RELIABLE_HEADER,
+                        mReliableLength - RELIABLE_HEADER);
+                slot[0] = (byte) RELIABLE;
+                slot[1] = (byte) (seq >>> 8);
+                slot[2] = (byte) seq;
+                mSlotLength[i] = mReliableLength;
+                mSlotSent[i] = now();
+                mSlotAcked[i] = false;
+                mSlotResent[i] = false;
+                mNext = (seq + 1) & 0xffff;
+                send(mWritePacket, slot, mReliableLength);
+            }
+            mReliableLength = RELIABLE_HEADER;
+        }
+
+        // Reading thread
+
+        private int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (mReadyStart == mReadyEnd) {
+                mReadyStart = mReadyEnd = 0;
+                if (!receive()) return -1;
+            }
+            int n = Math.min(len, mReadyEnd - mReadyStart);
+            System.arraycopy(mReady, mReadyStart, b, off, n);
+            mReadyStart += n;
+            return n;
+        }
+
+        /**
+         * Wait for one datagram, doing retransmissions and keepalives while
+         * waiting.
+         * @return false once the peer said goodbye
+         */
+        private boolean receive() throws IOException {
+            while (true) {
+                long now = now();
+                if (now - mLastReceived > PEER_TIMEOUT_MS) {
+                    throw new SocketTimeoutException("peer timed out");
+                }
+                long wait = retransmit(now);
+                if (now - mLastSent >= KEEPALIVE_MS) sendAck();
+                mSocket.setSoTimeout((int) Math.max(1, Math.min(wait, KEEPALIVE_MS)));
+                try {
+                    mReadPacket.setData(mIn, 0, MAX_DATAGRAM);
+                    mSocket.receive(mReadPacket);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                mLastReceived = now();
+                mHeard = true;
+                int length = mReadPacket.getLength();
+                if (length < 1) continue;
+                switch (mIn[0] & 0xff) {
+                case DATA:
+                    deliver(mIn, 1, length - 1);
+                    return true;
+                case RELIABLE:
+                    if (length < RELIABLE_HEADER) continue;
+                    boolean delivered = onReliable(length);
+                    sendAck();
+                    if (delivered) return true;
+                    break;
+                case ACK:
+                    if (length >= 7) onAck(((mIn[1] & 0xff) << 8) | (mIn[2] & 0xff), readInt(mIn, 3));
+                    break;
+                case BYE:
+                    return false;
+                }
+            }
+        }
+
+        private void deliver(byte[] b, int off, int len) {
+            System.arraycopy(b, off, mReady, mReadyEnd, len);
+            mReadyEnd += len;
+        }
+
+        private boolean onReliable(int length) {
+            int seq = ((mIn[1] & 0xff) << 8) | (mIn[2] & 0xff);
+            int d = (seq - mExpected) & 0xffff;
+            if (d >= WINDOW) {
+                // Already delivered, our acknowledgement was lost
+                return false;
+            }
+            if (d > 0) {
+                // Hold it until the gap before it is filled
+                int i = seq % WINDOW;
+                if (mHeldLength[i] == 0) {
+                    System.arraycopy(mIn, 0, mHeld[i], 0, length);
+                    mHeldLength[i] = length;
+                }
+                return false;
+            }
+            deliver(mIn, RELIABLE_HEADER, length - RELIABLE_HEADER);
+            mExpected = (mExpected + 1) & 0xffff;
+            int i;
+            while (mHeldLength[i = mExpected % WINDOW] > 0) {
+                deliver(mHeld[i], RELIABLE_HEADER, mHeldLength[i] - RELIABLE_HEADER);
+                mHeldLength[i] = 0;
+                mExpected = (mExpected + 1) & 0xffff;
+            }
+            return true;
+        }
+
+        private void sendAck() throws IOException {
+            int bitmap = 0;
+            for (int k = 0; k < WINDOW - 1; k++) {
+                if (mHeldLength[(mExpected + 1 + k) % WINDOW] > 0) bitmap |= 1 << k;
+            }
+            byte[] b = mControl;
+            b[0] = (byte) ACK;
+            b[1] = (byte) (mExpected >>> 8);
+            b[2] = (byte) mExpected;
+            writeInt(b, 3, bitmap);
+            send(mControlPacket, b, 7);
+        }
+
+        private void onAck(int next, int bitmap) throws IOException {
+            synchronized (mWindow) {
+                long now = now();
+                int inFlight = (mNext - mBase) & 0xffff;
+                if (((next - mBase) & 0xffff) > inFlight) return;
+                while (mBase != next) {
+                    int i = mBase % WINDOW;
+                    if (!mSlotResent[i] && !mSlotAcked[i]) {
+                        // Karn: only datagrams sent once give an RTT sample
+                        mSrtt += (now - mSlotSent[i] - mSrtt) / 8;
+                    }
+                    mBase = (mBase + 1) & 0xffff;
+                }
+                boolean later = false;
+                for (int k = 0; k < WINDOW - 1; k++) {
+                    if ((bitmap & (1 << k)) == 0) continue;
+                    int seq = (next + 1 + k) & 0xffff;
+                    if (((seq - mBase) & 0xffff) >= ((mNext - mBase) & 0xffff)) break;
+                    mSlotAcked[seq % WINDOW] = true;
+                    later = true;
+                }
+                if (later) {
+                    // Something after the gap arrived, resend the gap without
+                    // waiting for the timeout once it is a round trip old
+                    for (int seq = mBase; seq != mNext; seq = (seq + 1) & 0xffff) {
+                        int i = seq % WINDOW;
+                        if (!mSlotAcked[i] && now - mSlotSent[i] >= mSrtt) resend(i, now);
+                    }
+                }
+                mWindow.notifyAll();
+            }
+        }
+
+        // Resend what timed out, return the time until the next timeout
+        private long retransmit(long now) throws IOException {
+            synchronized (mWindow) {
+                long rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, 2 * mSrtt));
+                long wait = KEEPALIVE_MS;
+                for (int seq = mBase; seq != mNext; seq = (seq + 1) & 0xffff) {
+                    int i = seq % WINDOW;
+                    if (mSlotAcked[i]) continue;
+                    long age = now - mSlotSent[i];
+                    if (age >= rto) {
+                        resend(i, now);
+                        age = 0;
+                    }
+                    wait = Math.min(wait, rto - age);
+                }
+                return wait;
+            }
+        }
+
+        private void resend(int i, long now) throws IOException {
+            mSlotSent[i] = now;
+            mSlotResent[i] = true;
+            send(mResendPacket, mSlots[i], mSlotLength[i]);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.android.BluetoothChat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Checks that the legacy payloads of {@link EventEncoder} are the bytes the
+ * DataOutputStream path of PlayActivity wrote, and that encoding allocates
+ * nothing once the encoder exists. Plain Java, run with
+ *
+ * <pre>
+ *   javac -d bin protocol/src/com/example/android/BluetoothChat/*.java \
+ *       protocol/test/com/example/android/BluetoothChat/*.java
+ *   java -cp bin com.example.android.BluetoothChat.EventEncoderTest
+ * </pre>
+ *
+ * Exits with status 1 on the first failure.
+ */
+public final class EventEncoderTest {
+    private static final int EVENTS = 1000000;
+    // Slack for the measurement itself, far below one byte per event
+    private static final long ALLOCATION_SLACK = 4096;
+
+    private final EventEncoder mEncoder = new EventEncoder();
+    private int mChecks;
+
+    public static void main(String[] args) throws IOException {
+        EventEncoderTest t = new EventEncoderTest();
+        try {
+            t.legacyMatchesDataOutputStream();
+            t.encodingDoesNotAllocate();
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK (" + t.mChecks + " checks)");
+    }
+
+    private void legacyMatchesDataOutputStream() throws IOException {
+        mEncoder.setFormat(EventEncoder.FORMAT_LEGACY);
+        int[] values = { 0, 1, -1, 127, 128, 255, 256, 65535, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        for (int action = 0; action < 4; action++) {
+            for (int v : values) {
+                mEncoder.reset().putButton(Constants.KEY_EVENT, action, v, v | 1 << 30);
+                expect("KEY_EVENT", ints(Constants.KEY_EVENT, action, v, v | 1 << 30));
+                mEncoder.reset().putButton(Constants.MOUSE_KEY, action, v, 0);
+                expect("MOUSE_KEY", ints(Constants.MOUSE_KEY, action, v, 0));
+                mEncoder.reset().putMouseMotion(action, v, -v);
+                expect("MOUSE_MOTION", ints(Constants.MOUSE_MOTION, action, v, -v));
+                mEncoder.reset().putArrow(action, v);
+                expect("ARROW_KEY", ints(Constants.ARROW_KEY, action, v));
+                mEncoder.reset().putJoystick(action, v, -v, 10);
+                expect("JOYSTICK", ints(Constants.JOYSTICK, action, v, -v, 10));
+            }
+        }
+        float[] floats = { 0f, -0f, 9.81f, -9.81f, Float.MIN_VALUE, Float.MAX_VALUE,
+                Float.NaN, Float.intBitsToFloat(0x7fc00001), Float.POSITIVE_INFINITY };
+        for (float f : floats) {
+            mEncoder.reset().putAcceleration(f, -f, 1f);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(Constants.ACCELERATION);
+            out.writeFloat(f);
+            out.writeFloat(-f);
+            out.writeFloat(1f);
+            expect("ACCELERATION " + f, bytes.toByteArray());
+        }
+    }
+
+    private void encodingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("skipped: allocation counting not supported by this JVM");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long id = Thread.currentThread().getId();
+        AccelerationCodec.Encoder accel = new AccelerationCodec.Encoder();
+        for (int format = EventEncoder.FORMAT_LEGACY; format <= EventEncoder.FORMAT_COMPACT; format++) {
+            mEncoder.setFormat(format);
+            // Warm up so the loop is compiled before it is measured
+            encode(accel, EVENTS / 10);
+            long before = threads.getThreadAllocatedBytes(id);
+            int sum = encode(accel, EVENTS);
+            long allocated = threads.getThreadAllocatedBytes(id) - before;
+            check(allocated < ALLOCATION_SLACK, "format " + format + " allocated " + allocated
+                    + " bytes for " + EVENTS + " events (" + sum + ")");
+        }
+    }
+
+    private int encode(AccelerationCodec.Encoder accel, int events) {
+        int sum = 0;
+        for (int i = 0; i < events; i++) {
+            switch (i & 3) {
+            case 0:
+                mEncoder.reset().putButton(Constants.KEY_EVENT, i & 1, SDL2.Scancode.A, SDL2.Keycode.a);
+                break;
+            case 1:
+                mEncoder.reset().putArrow(2, i & 15);
+                break;
+            case 2:
+                mEncoder.reset().putJoystick(2, i & 511, -(i & 255), 10);
+                break;
+            default:
+                accel.put(mEncoder.reset(), (i & 63) * 0.05f, 9.81f, (i & 31) * 0.02f);
+                accel.keyframeQueued();
+                break;
+            }
+            sum += mEncoder.length();
+        }
+        return sum;
+    }
+
+    private static byte[] ints(int... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int v : values) {
+            out.writeInt(v);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void expect(String what, byte[] expected) {
+        byte[] actual = Arrays.copyOf(mEncoder.array(), mEncoder.length());
+        check(Arrays.equals(expected, actual), what + ": expected " + Arrays.toString(expected)
+                + " but was " + Arrays.toString(actual));
+    }
+
+    private void check(boolean condition, String message) {
+        mChecks++;
+        if (!condition) throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+/**
+ * Checks how the transport factories take the host:port a user types in the
+ * connect dialog, and that a UDP host can listen again while the endpoint it
+ * closed still answers a client. A bad address has to come out of open() as
+ * an IOException, which BluetoothChatService reports as a failed connection.
+ * Plain Java, built and run like {@link EventEncoderTest}. Exits with status
+ * 1 on the first failure.
+ */
+public final class TransportFactoryTest {
+    private int mChecks;
+
+    public static void main(String[] args) throws IOException {
+        TransportFactoryTest t = new TransportFactoryTest();
+        try {
+            t.parsesAddresses();
+            t.rejectsBadPorts();
+            t.udpListensAgainWhileLingering();
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK (" + t.mChecks + " checks)");
+    }
+
+    private void parsesAddresses() throws IOException {
+        expect("host", "host", 7345);
+        expect("host:80", "host", 80);
+        expect("10.0.0.2:65535", "10.0.0.2", 65535);
+        // A bare IPv6 address has no port
+        expect("fe80::1", "fe80::1", 7345);
+    }
+
+    private void rejectsBadPorts() {
+        TransportFactory[] factories = { new TcpTransportFactory(), new NioTcpTransportFactory(),
+                new UdpTransportFactory() };
+        String[] addresses = { "host:abc", "host:70000", "host:-1", "host:", ":80" };
+        for (TransportFactory f : factories) {
+            for (String address : addresses) {
+                try {
+                    f.open(address, true).close();
+                    check(false, f.getName() + " opened " + address);
+                } catch (IOException e) {
+                    check(true, null);
+                } catch (RuntimeException e) {
+                    check(false, f.getName() + " threw " + e + " for " + address);
+                }
+            }
+        }
+    }
+
+    private void udpListensAgainWhileLingering() throws IOException {
+        DatagramSocket probe = new DatagramSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+        UdpTransportFactory f = new UdpTransportFactory(port);
+        InetSocketAddress host = new InetSocketAddress("127.0.0.1", port);
+        DatagramSocket first = new DatagramSocket();
+        DatagramSocket second = new DatagramSocket();
+        first.setSoTimeout(2000);
+        try {
+            TransportFactory.Endpoint endpoint = f.listen(true);
+            first.send(hello(host, 1));
+            Transport session = endpoint.accept();
+            // The client never gets this HELLO_ACK, as if it was lost
+            DatagramPacket ack = receive(first);
+            // The session has not heard from its client, so the listener lingers
+            endpoint.close();
+            try {
+                endpoint = f.listen(true);
+            } catch (BindException e) {
+                check(false, "listen() while the last endpoint lingers: " + e);
+            }
+
+            first.send(hello(host, 1));
+            second.send(hello(host, 2));
+            Transport next = endpoint.accept();
+            DatagramPacket again = receive(first);
+            check(again.getLength() == 7 && again.getData()[0] == 0x11
+                    && UdpTransportFactory.readInt(again.getData(), 3) == 1,
+                    "repeated HELLO not answered with a HELLO_ACK");
+            check(again.getSocketAddress().equals(ack.getSocketAddress()),
+                    "repeated HELLO answered from " + again.getSocketAddress()
+                    + " instead of the session at " + ack.getSocketAddress());
+            next.close();
+            session.close();
+            endpoint.close();
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    private static DatagramPacket hello(InetSocketAddress host, int nonce) {
+        byte[] b = { 0x10, 'B', 'C', 0, 0, 0, 0 };
+        UdpTransportFactory.writeInt(b, 3, nonce);
+        return new DatagramPacket(b, b.length, host);
+    }
+
+    // The next HELLO_ACK, skipping the keepalives of the session
+    private static DatagramPacket receive(DatagramSocket socket) throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[1400], 1400);
+        do {
+            socket.receive(packet);
+        } while (packet.getData()[0] != 0x11);
+        return packet;
+    }
+
+    private void expect(String address, String host, int port) throws IOException {
+        InetSocketAddress a = TcpTransportFactory.parse(address, TcpTransportFactory.DEFAULT_PORT);
+        check(a.getHostString().equals(host) && a.getPort() == port,
+                address + ": expected " + host + " port " + port + " but was " + a);
+    }
+
+    private void check(boolean condition, String message) {
+        mChecks++;
+        if (!condition) throw new AssertionError(message);
+    }
+}
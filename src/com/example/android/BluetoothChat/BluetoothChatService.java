@@ -16,19 +16,13 @@
 
 package com.example.android.BluetoothChat;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
@@ -40,30 +34,40 @@ import android.util.Log;
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connected.
+ *
+ * The links themselves come from a {@link TransportFactory}, RFCOMM unless
+ * another one is given, so the same threads also run over TCP or in-memory
+ * pipes.
  */
 public class BluetoothChatService {
     // Debugging
     private static final String TAG = "BluetoothChatService";
     private static final boolean D = true;
 
-    // Name for the SDP record when creating server socket
-    private static final String NAME_SECURE = "BluetoothChatSecure";
-    private static final String NAME_INSECURE = "BluetoothChatInsecure";
-
-    // Unique UUID for this application
-    private static final UUID MY_UUID_SECURE =
-        UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    private static final UUID MY_UUID_INSECURE =
-        UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
-
     // Member fields
-    private final BluetoothAdapter mAdapter;
+    private final TransportFactory mTransports;
     private final Handler mHandler;
     private AcceptThread mSecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
+    // The newest connection, cancelled or not; the next one waits for its threads
+    private ConnectedThread mLastConnectedThread;
     private int mState;
+    private volatile boolean mFrameCrc = true;
+    private volatile boolean mFrameStamps;
+    // Decodes incoming control frames, only used by the ConnectedThread
+    private final EventDecoder mDecoder = new EventDecoder();
+    // Input-to-wire latency of outgoing events, kept across connections
+    private final InputLatency mLatency = new InputLatency();
+    private final ServiceMetrics mMetrics = new ServiceMetrics();
+    private volatile FrameCodec.FrameListener mAckListener;
+    private long mBatchWindowNanos;
+
+    // Size of each outgoing lane of a connection, in bytes
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    // Samples queued beyond this are dropped, the link is congested
+    private static final int SAMPLE_QUEUE_DEPTH = 8;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -71,13 +75,28 @@ public class BluetoothChatService {
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
 
+    // Continuous sources with a latest-value-wins slot, see writeLatest()
+    public static final int SOURCE_ACCELEROMETER = 0;
+    public static final int SOURCE_PAD = 1;
+    public static final int SOURCE_MOUSE = 2;
+    private static final int SOURCE_COUNT = 3;
+
     /**
      * Constructor. Prepares a new BluetoothChat session.
      * @param context  The UI Activity Context
      * @param handler  A Handler to send messages back to the UI Activity
      */
     public BluetoothChatService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
+        this(handler, new RfcommTransportFactory(BluetoothAdapter.getDefaultAdapter()));
+    }
+
+    /**
+     * Constructor. Prepares a new session over the given kind of link.
+     * @param handler  A Handler to send messages back to the UI Activity
+     * @param transports  Creates the links to listen on and connect with
+     */
+    public BluetoothChatService(Handler handler, TransportFactory transports) {
+        mTransports = transports;
         mState = STATE_NONE;
         mHandler = handler;
     }
@@ -100,6 +119,141 @@ public class BluetoothChatService {
         return mState;
     }
 
+    /**
+     * Enable or disable the CRC-16 trailer on outgoing frames. Incoming
+     * frames are accepted either way.
+     */
+    public void setFrameCrc(boolean crc) {
+        mFrameCrc = crc;
+    }
+
+    /**
+     * Enable or disable the sequence number and capture time extension on
+     * outgoing frames, see {@link FrameCodec#FLAG_STAMP}. Off by default.
+     */
+    public void setFrameStamps(boolean stamps) {
+        mFrameStamps = stamps;
+    }
+
+    /**
+     * Combine frames written within the given window into a single socket
+     * write. 0 turns batching off, which is the default. Urgent frames still
+     * go out immediately.
+     * @param nanos  The combining window, e.g. 2 ms or one display frame
+     */
+    public synchronized void setBatchWindow(long nanos) {
+        mBatchWindowNanos = nanos;
+        if (mConnectedThread != null) mConnectedThread.setBatchWindow(nanos);
+    }
+
+    /**
+     * Return the number of socket writes of the current connection, to
+     * compare against {@link #getFramesWritten()}.
+     */
+    public synchronized long getSocketWrites() {
+        return mConnectedThread != null ? mConnectedThread.mmWriter.mmCombiner.getWriteCount() : 0;
+    }
+
+    /**
+     * Return the number of frames written on the current connection.
+     */
+    public synchronized long getFramesWritten() {
+        return mConnectedThread != null ? mConnectedThread.mmWriter.mmCombiner.getFrameCount() : 0;
+    }
+
+    /**
+     * Return the number of frames waiting for the writer thread.
+     * @param urgent  Ask for the urgent lane instead of the sample lane
+     */
+    public synchronized long getQueueDepth(boolean urgent) {
+        return mConnectedThread != null ? mConnectedThread.mmWriter.lane(urgent).depth() : 0;
+    }
+
+    /**
+     * Return the deepest an outgoing lane has been on this connection.
+     * @param urgent  Ask for the urgent lane instead of the sample lane
+     */
+    public synchronized long getQueueHighWater(boolean urgent) {
+        return mConnectedThread != null ? mConnectedThread.mmWriter.lane(urgent).highWater() : 0;
+    }
+
+    /**
+     * Return the number of frames an outgoing lane dropped. The sample lane
+     * drops whenever the link falls SAMPLE_QUEUE_DEPTH frames behind; the
+     * urgent lane only when it runs out of space.
+     * @param urgent  Ask for the urgent lane instead of the sample lane
+     */
+    public synchronized long getQueueDrops(boolean urgent) {
+        return mConnectedThread != null ? mConnectedThread.mmWriter.lane(urgent).dropped() : 0;
+    }
+
+    /**
+     * Return the number of stamped frames from the remote side that have
+     * not arrived, judging by the gaps in their sequence numbers.
+     */
+    public synchronized long getMissingFrames() {
+        return mConnectedThread != null ? mConnectedThread.mmSequence.getMissingCount() : 0;
+    }
+
+    /**
+     * Return the number of stamped frames from the remote side that arrived
+     * after a newer one.
+     */
+    public synchronized long getLateFrames() {
+        return mConnectedThread != null ? mConnectedThread.mmSequence.getLateCount() : 0;
+    }
+
+    /**
+     * Return the number of payloads of a continuous source that were
+     * replaced by a newer one before they could be sent.
+     * @param source  One of the SOURCE_ constants
+     */
+    public synchronized long getConflated(int source) {
+        return mConnectedThread != null ? mConnectedThread.mmWriter.mmSlots[source].overwritten() : 0;
+    }
+
+    /**
+     * Return the decoder for incoming control events. Set its listener or
+     * register handlers before a connection is made.
+     */
+    public EventDecoder getEventDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * Return the input-to-wire latency histograms. The encode stage is up
+     * to the caller, the service records the others.
+     */
+    public InputLatency getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * Copy the service counters together with the queue gauges of the
+     * current connection. Cheap enough to call once per display frame.
+     * @param into  A snapshot to reuse, or null to allocate one
+     */
+    public synchronized ServiceMetrics.Snapshot getMetrics(ServiceMetrics.Snapshot into) {
+        ServiceMetrics.Snapshot s = mMetrics.snapshot(into);
+        FrameRing urgent = mConnectedThread != null ? mConnectedThread.mmWriter.mmUrgent : null;
+        FrameRing samples = mConnectedThread != null ? mConnectedThread.mmWriter.mmSamples : null;
+        s.mUrgentDepth = urgent != null ? urgent.depth() : 0;
+        s.mUrgentHighWater = urgent != null ? urgent.highWater() : 0;
+        s.mUrgentDrops = urgent != null ? urgent.dropped() : 0;
+        s.mSampleDepth = samples != null ? samples.depth() : 0;
+        s.mSampleHighWater = samples != null ? samples.highWater() : 0;
+        s.mSampleDrops = samples != null ? samples.dropped() : 0;
+        return s;
+    }
+
+    /**
+     * Set the listener for ACK_DATA frames from the remote side. It is
+     * called on the connection thread and must not block.
+     */
+    public void setAckListener(FrameCodec.FrameListener listener) {
+        mAckListener = listener;
+    }
+
     /**
      * Start the chat service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume() */
@@ -114,7 +268,7 @@ public class BluetoothChatService {
 
         setState(STATE_LISTEN);
 
-        // Start the thread to listen on a BluetoothServerSocket
+        // Start the thread to listen on a server endpoint
         if (mSecureAcceptThread == null) {
             mSecureAcceptThread = new AcceptThread(true);
             mSecureAcceptThread.start();
@@ -130,8 +284,28 @@ public class BluetoothChatService {
      * @param device  The BluetoothDevice to connect
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        if (D) Log.d(TAG, "connect to: " + device);
+    public void connect(BluetoothDevice device, boolean secure) {
+        connect(device.getAddress(), secure);
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection to a remote device.
+     * @param address  The address of the device in the format of the transport
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public void connect(String address, boolean secure) {
+        connect(mTransports, address, secure);
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection over another kind of
+     * link than the one the service listens on.
+     * @param transports  Creates the link, e.g. a NioTcpTransportFactory
+     * @param address  The address of the device in the format of the transport
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public synchronized void connect(TransportFactory transports, String address, boolean secure) {
+        if (D) Log.d(TAG, "connect to: " + address + " over " + transports.getName());
 
         // Cancel any thread attempting to make a connection
         if (mState == STATE_CONNECTING) {
@@ -142,18 +316,17 @@ public class BluetoothChatService {
         if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
 
         // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
+        mMetrics.connectStarted();
+        mConnectThread = new ConnectThread(transports, address, secure);
         mConnectThread.start();
         setState(STATE_CONNECTING);
     }
 
     /**
      * Start the ConnectedThread to begin managing a Bluetooth connection
-     * @param socket  The BluetoothSocket on which the connection was made
-     * @param device  The BluetoothDevice that has been connected
+     * @param socket  The Transport on which the connection was made
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
+    public synchronized void connected(Transport socket, final String socketType) {
         if (D) Log.d(TAG, "connected, Socket Type:" + socketType);
 
         // Cancel the thread that completed the connection
@@ -173,14 +346,18 @@ public class BluetoothChatService {
         }
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
+        mMetrics.connected();
+        mDecoder.getAccelerationDecoder().reset();
+        mConnectedThread = new ConnectedThread(socket, socketType, mLastConnectedThread);
+        mLastConnectedThread = mConnectedThread;
+        mConnectedThread.setBatchWindow(mBatchWindowNanos);
         mConnectedThread.start();
 
         // Send the name of the connected device back to the UI Activity
         //将msg发回给UI，显示在ListView中
         Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(BluetoothChat.DEVICE_NAME, device.getName());
+        bundle.putString(BluetoothChat.DEVICE_NAME, socket.getRemoteName());
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
@@ -216,26 +393,126 @@ public class BluetoothChatService {
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue a frame on the ConnectedThread in an unsynchronized manner. The
+     * frame is copied and written by the connection's writer thread, so
+     * this returns without waiting for the radio. Call it from a single
+     * thread, normally the UI thread.
+     *
+     * There are two lanes. Urgent frames (key, button and pad transitions,
+     * text) are written before anything else and skip the combining window.
+     * Everything else is a continuous sample: it may wait for the window and
+     * is dropped when the link is congested.
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @see ConnectedThread#write(byte[], int)
      */
     public void write(byte[] out, int dataType) {
+        write(out, 0, out.length, dataType);
+    }
+
+    /**
+     * Queue part of a buffer as one frame on the ConnectedThread in an
+     * unsynchronized manner
+     * @param out The buffer holding the payload
+     * @param offset The first payload byte
+     * @param length The payload length
+     * @see ConnectedThread#write(byte[], int, int, int, boolean, long)
+     */
+    public void write(byte[] out, int offset, int length, int dataType) {
+        write(out, offset, length, dataType, false);
+    }
+
+    /**
+     * Queue part of a buffer as one frame on the ConnectedThread in an
+     * unsynchronized manner
+     * @param out The buffer holding the payload
+     * @param offset The first payload byte
+     * @param length The payload length
+     * @param urgent Use the urgent lane, for discrete transitions
+     * @see ConnectedThread#write(byte[], int, int, int, boolean, long)
+     */
+    public void write(byte[] out, int offset, int length, int dataType, boolean urgent) {
+        write(out, offset, length, dataType, urgent, System.nanoTime());
+    }
+
+    /**
+     * Queue part of a buffer as one frame on the ConnectedThread in an
+     * unsynchronized manner
+     * @param out The buffer holding the payload
+     * @param offset The first payload byte
+     * @param length The payload length
+     * @param urgent Use the urgent lane, for discrete transitions
+     * @param captureNanos When the input behind the payload happened, e.g.
+     *  MotionEvent.getEventTime() in nanoseconds; sent with the frame stamp
+     * @return false if the frame was dropped: not connected, too large or
+     *  the lane was full
+     * @see ConnectedThread#write(byte[], int, int, int, boolean, long)
+     */
+    public boolean write(byte[] out, int offset, int length, int dataType, boolean urgent,
+            long captureNanos) {
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
+            if (mState != STATE_CONNECTED) return false;
             r = mConnectedThread;
         }
         // Perform the write unsynchronized
-        r.write(out, dataType);
+        return r.write(out, offset, length, dataType, urgent, captureNanos);
+    }
+
+    /**
+     * Publish the newest payload of a continuous source. It replaces the
+     * source's unsent payload, if any, so however fast the source fires at
+     * most one of its frames waits for the writer. Call it from the same
+     * thread as write().
+     * @param source One of the SOURCE_ constants
+     * @param out The buffer holding the payload
+     * @param offset The first payload byte
+     * @param length The payload length
+     */
+    public void writeLatest(int source, byte[] out, int offset, int length, int dataType) {
+        writeLatest(source, out, offset, length, dataType, System.nanoTime());
+    }
+
+    /**
+     * Publish the newest payload of a continuous source.
+     * @param captureNanos When the input behind the payload happened
+     * @see #writeLatest(int, byte[], int, int, int)
+     */
+    public void writeLatest(int source, byte[] out, int offset, int length, int dataType,
+            long captureNanos) {
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+            r = mConnectedThread;
+        }
+        int stamp = InputLatency.micros(captureNanos);
+        r.mmWriter.offerLatest(source, dataType, stamp, out, offset, length);
+        mLatency.record(InputLatency.STAGE_ENQUEUE,
+                InputLatency.eventType(dataType, out, offset, length), stamp, InputLatency.now());
+    }
+
+    /**
+     * Withdraw the unsent payload of a continuous source, e.g. before the
+     * transition that ends it, so it cannot arrive after that transition.
+     * @param source One of the SOURCE_ constants
+     */
+    public void retractLatest(int source) {
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+            r = mConnectedThread;
+        }
+        r.mmWriter.mmSlots[source].retract();
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
     private void connectionFailed() {
+        synchronized (this) {
+            mMetrics.connectFailed();
+        }
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -251,6 +528,9 @@ public class BluetoothChatService {
      * Indicate that the connection was lost and notify the UI Activity.
      */
     private void connectionLost() {
+        synchronized (this) {
+            mMetrics.connectionLost();
+        }
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -269,22 +549,16 @@ public class BluetoothChatService {
      */
     private class AcceptThread extends Thread {
         // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+        private final TransportFactory.Endpoint mmServerSocket;
         private String mSocketType;
 
         public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
+            TransportFactory.Endpoint tmp = null;
             mSocketType = secure ? "Secure":"Insecure";
 
             // Create a new listening server socket
             try {
-                if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                        MY_UUID_SECURE);
-                } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
-                }
+                tmp = mTransports.listen(secure);
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
             }
@@ -296,7 +570,10 @@ public class BluetoothChatService {
                     "BEGIN mAcceptThread" + this);
             setName("AcceptThread" + mSocketType);
 
-            BluetoothSocket socket = null;
+            // The transport may not offer this kind of endpoint
+            if (mmServerSocket == null) return;
+
+            Transport socket = null;
 
             // Listen to the server socket if we're not connected
             while (mState != STATE_CONNECTED) {
@@ -316,8 +593,7 @@ public class BluetoothChatService {
                         case STATE_LISTEN:
                         case STATE_CONNECTING:
                             // Situation normal. Start the connected thread.
-                            connected(socket, socket.getRemoteDevice(),
-                                    mSocketType);
+                            connected(socket, mSocketType);
                             break;
                         case STATE_NONE:
                         case STATE_CONNECTED:
@@ -338,6 +614,7 @@ public class BluetoothChatService {
 
         public void cancel() {
             if (D) Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            if (mmServerSocket == null) return;
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -353,25 +630,16 @@ public class BluetoothChatService {
      * succeeds or fails.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+        private final Transport mmSocket;
         private String mSocketType;
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectThread(TransportFactory transports, String address, boolean secure) {
+            Transport tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // Get a Transport for a connection with the given address
             try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            MY_UUID_INSECURE);
-                }
+                tmp = transports.open(address, secure);
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
             }
@@ -382,10 +650,12 @@ public class BluetoothChatService {
             Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
             setName("ConnectThread" + mSocketType);
 
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            if (mmSocket == null) {
+                connectionFailed();
+                return;
+            }
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the Transport
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
@@ -408,10 +678,11 @@ public class BluetoothChatService {
             }
 
             // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+            connected(mmSocket, mSocketType);
         }
 
         public void cancel() {
+            if (mmSocket == null) return;
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -424,18 +695,25 @@ public class BluetoothChatService {
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectedThread extends Thread implements FrameCodec.FrameListener {
+        private final Transport mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
+        private final FrameCodec.Reassembler mmReassembler = new FrameCodec.Reassembler();
+        private final FrameCodec.SequenceTracker mmSequence = new FrameCodec.SequenceTracker();
+        private final WriterThread mmWriter;
+        // Set by whichever of the reader and the writer fails first, or by cancel()
+        private boolean mmLost;
+        // The connection this one replaced, until its threads have ended
+        private ConnectedThread mmPrevious;
+
+        public ConnectedThread(Transport socket, String socketType, ConnectedThread previous) {
             Log.d(TAG, "create ConnectedThread: " + socketType);
             mmSocket = socket;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the Transport input and output streams
             try {
                 tmpIn = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
@@ -445,70 +723,147 @@ public class BluetoothChatService {
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            mmWriter = new WriterThread(this, tmpOut);
+            mmPrevious = previous;
+        }
+
+        void setBatchWindow(long nanos) {
+            mmWriter.mmCombiner.setWindow(nanos);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
             int bytes;
+            // A cancelled reader or writer may still count a frame it had,
+            // and each block of ServiceMetrics takes one writer at a time
+            if (mmPrevious != null) {
+                try {
+                    mmPrevious.join();
+                    mmPrevious.mmWriter.join();
+                } catch (InterruptedException e) {
+                    // Nothing interrupts a connection, and an NIO transport
+                    // would close on a pending interrupt
+                    Log.e(TAG, "interrupted waiting for the previous connection", e);
+                }
+                mmPrevious = null;
+            }
+            mmWriter.start();
 
             // Keep listening to the InputStream while connected
             while (true) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                	ByteArrayInputStream bis = new ByteArrayInputStream(buffer);
-                	DataInputStream dis = new DataInputStream(bis);
-                	int head = dis.readInt();
-                	switch (head) {
-                	case Constants.TEXT_DATA:
-                		// Send the obtained bytes to the UI Activity
-                        mHandler.obtainMessage(BluetoothChat.MESSAGE_READ, bytes, -1, buffer)
-                                .sendToTarget();
-                		break;
-                	case Constants.CONTROL_DATA:
-                		int i = dis.readInt();
-                    	float f = dis.readFloat();
-                    	double d = dis.readDouble();
-                    	System.out.print(i);
-                		break;
-                	} 	
+                    // Read from the InputStream, every complete frame goes to onFrame()
+                    bytes = mmReassembler.readFrom(mmInStream, this);
+                    if (bytes < 0) throw new IOException("end of stream");
+                    mMetrics.bytesRead(bytes);
                 } catch (IOException e) {
                     Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothChatService.this.start();
+                    lost();
                     break;
                 }
             }
         }
 
         /**
-         * Write to the connected OutStream.
-         * @param buffer  The bytes to write
+         * Report the connection lost once, from the reader or the writer.
+         * connectionLost() restarts the service, which cancels this thread.
          */
-        public void write(byte[] buffer, int dataType) {
+        void lost() {
+            synchronized (this) {
+                if (mmLost) return;
+                mmLost = true;
+            }
+            connectionLost();
+        }
+
+        /**
+         * The writer could not write. Close the transport so the reader
+         * ends too instead of keeping a dead connection CONNECTED.
+         */
+        void writeFailed() {
+            lost();
             try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                switch (dataType) {
-                case Constants.TEXT_DATA:
-                	mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, buffer)
-                    .sendToTarget();
-                	break;
-                case Constants.CONTROL_DATA:
-                	//TODO sth.
-                	break;
-                }
-                
+                mmSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                Log.e(TAG, "close() of connect socket failed", e);
+            }
+        }
+
+        public void onFrame(int type, int flags, byte[] buffer, int offset, int length) {
+            mMetrics.frameIn(type, FrameCodec.frameSize(length, flags));
+            if ((flags & FrameCodec.FLAG_STAMP) != 0) {
+                mmSequence.track(FrameCodec.getSequence(buffer, offset));
+            }
+            switch (type) {
+            case Constants.TEXT_DATA:
+                // The reassembly buffer is reused, hand the UI its own copy
+                byte[] text = new byte[length];
+                System.arraycopy(buffer, offset, text, 0, length);
+                mHandler.obtainMessage(BluetoothChat.MESSAGE_READ, length, -1, text)
+                        .sendToTarget();
+                break;
+            case Constants.CONTROL_DATA:
+            case Constants.CONTROL_DATA_COMPACT:
+                mDecoder.decode(type, buffer, offset, length);
+                break;
+            case Constants.ACK_DATA:
+                FrameCodec.FrameListener l = mAckListener;
+                if (l != null) l.onFrame(type, flags, buffer, offset, length);
+                break;
+            }
+        }
+
+        /**
+         * Write one frame to the connected OutStream.
+         * @param buffer  The bytes to write
+         */
+        public void write(byte[] buffer, int dataType) {
+            write(buffer, 0, buffer.length, dataType, true, System.nanoTime());
+        }
+
+        /**
+         * Queue one frame for the connected OutStream.
+         * @param buffer  The bytes to write
+         * @param offset  The first payload byte in buffer
+         * @param length  The payload length, at most FrameCodec.MAX_PAYLOAD
+         * @param urgent  Queue on the urgent lane
+         * @param captureNanos  When the input behind the payload happened
+         * @return false if the frame was too large or the lane was full
+         */
+        public boolean write(byte[] buffer, int offset, int length, int dataType, boolean urgent,
+                long captureNanos) {
+            if (length > FrameCodec.MAX_PAYLOAD) {
+                Log.e(TAG, "Dropping oversized frame: " + length + " bytes");
+                return false;
+            }
+            // Text is never held back
+            int stamp = InputLatency.micros(captureNanos);
+            if (!mmWriter.offer(dataType, urgent || dataType == Constants.TEXT_DATA,
+                    stamp, buffer, offset, length)) {
+                return false;
+            }
+            mLatency.record(InputLatency.STAGE_ENQUEUE,
+                    InputLatency.eventType(dataType, buffer, offset, length), stamp, InputLatency.now());
+
+            // Share the sent message back to the UI Activity
+            switch (dataType) {
+            case Constants.TEXT_DATA:
+            	mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, buffer)
+                .sendToTarget();
+            	break;
+            case Constants.CONTROL_DATA:
+            	//TODO sth.
+            	break;
             }
+            return true;
         }
 
         public void cancel() {
+            // The reader fails once the socket is closed, that is no loss
+            synchronized (this) {
+                mmLost = true;
+            }
+            mmWriter.cancel();
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -516,4 +871,130 @@ public class BluetoothChatService {
             }
         }
     }
+
+    /**
+     * This thread owns the OutStream of a connection. It drains the urgent
+     * lane, then the sample lane, then the latest-value slots, combines
+     * frames within the batch window and blocks on the radio so the UI
+     * thread never does.
+     */
+    private class WriterThread extends Thread {
+        private final ConnectedThread mmConnection;
+        private final FrameRing mmUrgent = new FrameRing(QUEUE_CAPACITY);
+        private final FrameRing mmSamples = new FrameRing(QUEUE_CAPACITY);
+        private final ConflatingSlot[] mmSlots = new ConflatingSlot[SOURCE_COUNT];
+        private final WriteCombiner mmCombiner;
+        private volatile boolean mmParked;
+        private volatile boolean mmRunning = true;
+        // Sequence number of the next frame
+        private int mmSeq;
+
+        public WriterThread(ConnectedThread connection, OutputStream out) {
+            super("WriterThread");
+            mmConnection = connection;
+            mmCombiner = new WriteCombiner(out, 4 * FrameCodec.MAX_FRAME, mLatency, mMetrics);
+            mmSamples.setMaxDepth(SAMPLE_QUEUE_DEPTH);
+            for (int i = 0; i < SOURCE_COUNT; i++) {
+                mmSlots[i] = new ConflatingSlot(FrameCodec.MAX_PAYLOAD);
+            }
+        }
+
+        FrameRing lane(boolean urgent) {
+            return urgent ? mmUrgent : mmSamples;
+        }
+
+        /**
+         * Hand one payload to the writer. Constant time, never blocks.
+         * @return false if the lane was full and the payload was dropped
+         */
+        boolean offer(int dataType, boolean urgent, int stamp, byte[] buffer, int offset,
+                int length) {
+            boolean queued = lane(urgent).offer(dataType, 0, stamp, buffer, offset, length);
+            if (mmParked) LockSupport.unpark(this);
+            return queued;
+        }
+
+        /**
+         * Replace the unsent payload of a continuous source. Constant time,
+         * never blocks.
+         */
+        void offerLatest(int source, int dataType, int stamp, byte[] buffer, int offset,
+                int length) {
+            mmSlots[source].put(dataType, stamp, buffer, offset, length);
+            if (mmParked) LockSupport.unpark(this);
+        }
+
+        public void run() {
+            try {
+                while (mmRunning) {
+                    boolean flush = false;
+                    while (mmUrgent.peek()) {
+                        append(mmUrgent);
+                        flush = true;
+                    }
+                    // Samples fill in behind, but yield to a new urgent frame
+                    while (mmUrgent.isEmpty() && mmSamples.peek()) {
+                        append(mmSamples);
+                    }
+                    for (int i = 0; i < SOURCE_COUNT && mmUrgent.isEmpty(); i++) {
+                        ConflatingSlot slot = mmSlots[i];
+                        if (slot.take()) {
+                            // An urgent frame queued before this payload, e.g. an
+                            // accelerometer keyframe its delta refers to, goes first
+                            while (mmUrgent.peek()) {
+                                append(mmUrgent);
+                                flush = true;
+                            }
+                            append(slot.type(), slot.stamp(), slot.array(), 0, slot.length());
+                        }
+                    }
+                    long now = System.nanoTime();
+                    if (flush || mmCombiner.isDue(now)) {
+                        mmCombiner.flush();
+                    }
+
+                    // Sleep until the next frame or the end of the window
+                    mmParked = true;
+                    if (mmUrgent.isEmpty() && mmSamples.isEmpty() && !slotsPending() && mmRunning) {
+                        if (mmCombiner.isPending()) {
+                            LockSupport.parkNanos(this, mmCombiner.timeLeft(now));
+                        } else {
+                            LockSupport.park(this);
+                        }
+                    }
+                    mmParked = false;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+                // Nothing to report if the connection was cancelled
+                if (mmRunning) mmConnection.writeFailed();
+            }
+        }
+
+        private boolean slotsPending() {
+            for (int i = 0; i < SOURCE_COUNT; i++) {
+                if (mmSlots[i].isPending()) return true;
+            }
+            return false;
+        }
+
+        private void append(FrameRing ring) throws IOException {
+            append(ring.type, ring.stamp, ring.array(), ring.offset, ring.length);
+            ring.release();
+        }
+
+        // Sequence numbers are given out here, so they follow the order on the wire
+        private void append(int type, int stamp, byte[] buffer, int offset, int length)
+                throws IOException {
+            int flags = (mFrameCrc ? FrameCodec.FLAG_CRC : 0)
+                    | (mFrameStamps ? FrameCodec.FLAG_STAMP : 0);
+            mmCombiner.append(type, flags, mmSeq, stamp, buffer, offset, length, false);
+            mmSeq = (mmSeq + 1) & 0xffff;
+        }
+
+        public void cancel() {
+            mmRunning = false;
+            LockSupport.unpark(this);
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latest-value-wins mailbox for one continuous input source. A new payload
+ * replaces the one that has not been sent yet, so a source that fires
+ * faster than the link drains never queues more than one frame.
+ *
+ * This is a triple buffer: the producer fills its back buffer and swaps it
+ * with the middle one, the consumer swaps its front buffer with the middle
+ * one when the middle holds something new. The three buffers are allocated
+ * up front and neither side ever waits for the other.
+ */
+final class ConflatingSlot {
+    private static final int DIRTY = 4;
+    private static final int INDEX = 3;
+
+    private final byte[][] mBuffers;
+    private final int[] mTypes = new int[3];
+    private final int[] mStamps = new int[3];
+    private final int[] mLengths = new int[3];
+    // Index of the middle buffer, plus DIRTY if it holds an unsent payload
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    private int mBack = 0;
+    private int mFront = 2;
+
+    // Statistics, written by the producer only
+    private final AtomicLong mPut = new AtomicLong();
+    private final AtomicLong mOverwritten = new AtomicLong();
+
+    ConflatingSlot(int capacity) {
+        mBuffers = new byte[3][capacity];
+    }
+
+    /**
+     * Producer side. Publish a payload, replacing any unsent one.
+     * @param stamp  The capture time of the payload in microseconds
+     * @return false if the payload does not fit the slot
+     */
+    boolean put(int type, int stamp, byte[] buffer, int offset, int length) {
+        if (length > mBuffers[mBack].length) return false;
+        System.arraycopy(buffer, offset, mBuffers[mBack], 0, length);
+        mTypes[mBack] = type;
+        mStamps[mBack] = stamp;
+        mLengths[mBack] = length;
+        int old = mMiddle.getAndSet(mBack | DIRTY);
+        mBack = old & INDEX;
+        mPut.lazySet(mPut.get() + 1);
+        if ((old & DIRTY) != 0) mOverwritten.lazySet(mOverwritten.get() + 1);
+        return true;
+    }
+
+    /**
+     * Producer side. Withdraw the unsent payload, if any, e.g. because a
+     * transition that ends the stream is about to be sent.
+     */
+    void retract() {
+        if ((mMiddle.get() & DIRTY) == 0) return;
+        int old = mMiddle.getAndSet(mBack);
+        mBack = old & INDEX;
+        if ((old & DIRTY) != 0) mOverwritten.lazySet(mOverwritten.get() + 1);
+    }
+
+    boolean isPending() {
+        return (mMiddle.get() & DIRTY) != 0;
+    }
+
+    /**
+     * Consumer side. Take the newest payload; it stays readable through
+     * {@link #array()}, {@link #type()}, {@link #stamp()} and {@link #length()}
+     * until the next
+     * take.
+     * @return false if nothing new was published
+     */
+    boolean take() {
+        if ((mMiddle.get() & DIRTY) == 0) return false;
+        // A retract may have cleaned the middle since the check, then this
+        // only trades one free buffer for another
+        int old = mMiddle.getAndSet(mFront);
+        mFront = old & INDEX;
+        return (old & DIRTY) != 0;
+    }
+
+    byte[] array() {
+        return mBuffers[mFront];
+    }
+
+    int type() {
+        return mTypes[mFront];
+    }
+
+    int stamp() {
+        return mStamps[mFront];
+    }
+
+    int length() {
+        return mLengths[mFront];
+    }
+
+    /** Return the number of payloads published. */
+    long published() {
+        return mPut.get();
+    }
+
+    /** Return the number of payloads replaced or withdrawn before sending. */
+    long overwritten() {
+        return mOverwritten.get();
+    }
+}
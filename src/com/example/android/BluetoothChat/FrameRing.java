@@ -0,0 +1,176 @@
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-allocated single-producer/single-consumer ring of outgoing payloads.
+ * The producer (the UI thread) copies a payload in and returns without
+ * taking a lock; the consumer (the writer thread) reads records in place.
+ *
+ * Each record is an 8-byte header (length, data type, flags, capture time)
+ * followed by the payload, and records never wrap: if the tail of the array is too short,
+ * the producer leaves a padding record and starts over at index 0. Head and
+ * tail are byte positions that only grow.
+ *
+ * When the ring is full, or holds {@link #setMaxDepth(int)} frames, the new
+ * payload is dropped and counted, the producer never waits for the radio.
+ */
+final class FrameRing {
+    static final int RECORD_HEADER = 8;
+    private static final int PADDING = 0xffff;
+
+    private final byte[] mData;
+    private final int mMask;
+
+    // Byte positions, tail written by the producer, head by the consumer
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+    // Producer's last look at mHead, saves a volatile read per offer
+    private long mHeadCache;
+
+    // Frame counters, each written by one side only
+    private final AtomicLong mOffered = new AtomicLong();
+    private final AtomicLong mPolled = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mHighWater = new AtomicLong();
+    private volatile int mMaxDepth = Integer.MAX_VALUE;
+
+    // Consumer's view of the current record, valid until release()
+    int type;
+    int flags;
+    int stamp;
+    int offset;
+    int length;
+
+    /**
+     * @param capacity  Size in bytes, rounded up to a power of two
+     */
+    FrameRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2 * (RECORD_HEADER + FrameCodec.MAX_PAYLOAD)) - 1) << 1;
+        mData = new byte[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Limit the number of frames waiting in the ring, independent of its
+     * size in bytes. A short limit bounds how stale a queued sample can get.
+     */
+    void setMaxDepth(int frames) {
+        mMaxDepth = frames;
+    }
+
+    /**
+     * Producer side. Copy one payload into the ring.
+     * @param stamp  The capture time of the payload in microseconds
+     * @return false if the ring is full and the payload was dropped
+     */
+    boolean offer(int type, int flags, int stamp, byte[] buffer, int off, int len) {
+        if (mOffered.get() - mPolled.get() >= mMaxDepth) {
+            mDropped.lazySet(mDropped.get() + 1);
+            return false;
+        }
+        final int need = RECORD_HEADER + len;
+        final long tail = mTail.get();
+        int index = (int) (tail & mMask);
+        int contiguous = mData.length - index;
+        // Pad to the start of the array if the record does not fit at the end
+        long end = tail + (contiguous < need ? contiguous + need : need);
+        if (end - mHeadCache > mData.length) {
+            mHeadCache = mHead.get();
+            if (end - mHeadCache > mData.length) {
+                mDropped.lazySet(mDropped.get() + 1);
+                return false;
+            }
+        }
+        if (contiguous < need) {
+            if (contiguous >= 2) {
+                mData[index] = (byte) (PADDING >>> 8);
+                mData[index + 1] = (byte) PADDING;
+            }
+            index = 0;
+        }
+        mData[index] = (byte) (len >>> 8);
+        mData[index + 1] = (byte) len;
+        mData[index + 2] = (byte) type;
+        mData[index + 3] = (byte) flags;
+        mData[index + 4] = (byte) (stamp >>> 24);
+        mData[index + 5] = (byte) (stamp >>> 16);
+        mData[index + 6] = (byte) (stamp >>> 8);
+        mData[index + 7] = (byte) stamp;
+        System.arraycopy(buffer, off, mData, index + RECORD_HEADER, len);
+        // A full volatile store, so the consumer's parked flag read after
+        // it cannot be reordered before it
+        mTail.set(end);
+
+        long offered = mOffered.get() + 1;
+        mOffered.lazySet(offered);
+        long depth = offered - mPolled.get();
+        if (depth > mHighWater.get()) mHighWater.lazySet(depth);
+        return true;
+    }
+
+    /**
+     * Consumer side. Load the next record into type, flags, stamp, offset
+     * and length; the payload stays in {@link #array()} until {@link #release()}.
+     * @return false if the ring is empty
+     */
+    boolean peek() {
+        long head = mHead.get();
+        while (true) {
+            if (head == mTail.get()) return false;
+            int index = (int) (head & mMask);
+            int contiguous = mData.length - index;
+            int len = contiguous < RECORD_HEADER ? PADDING
+                    : ((mData[index] & 0xff) << 8) | (mData[index + 1] & 0xff);
+            if (len == PADDING) {
+                // Skip the padding to the start of the array
+                head += contiguous;
+                mHead.lazySet(head);
+                continue;
+            }
+            type = mData[index + 2] & 0xff;
+            flags = mData[index + 3] & 0xff;
+            stamp = ((mData[index + 4] & 0xff) << 24) | ((mData[index + 5] & 0xff) << 16)
+                    | ((mData[index + 6] & 0xff) << 8) | (mData[index + 7] & 0xff);
+            offset = index + RECORD_HEADER;
+            length = len;
+            return true;
+        }
+    }
+
+    /**
+     * Consumer side. Free the record loaded by the last {@link #peek()}.
+     */
+    void release() {
+        mHead.lazySet(mHead.get() + RECORD_HEADER + length);
+        mPolled.lazySet(mPolled.get() + 1);
+    }
+
+    byte[] array() {
+        return mData;
+    }
+
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    /** Return the number of frames waiting in the ring. */
+    long depth() {
+        return mOffered.get() - mPolled.get();
+    }
+
+    /** Return the largest depth seen by the producer. */
+    long highWater() {
+        return mHighWater.get();
+    }
+
+    /** Return the number of payloads dropped because the ring was full. */
+    long dropped() {
+        return mDropped.get();
+    }
+
+    /** Return the number of payloads accepted. */
+    long offered() {
+        return mOffered.get();
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.android.BluetoothChat;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -15,14 +16,31 @@ public class Pad extends View {
 	private int currRadius = -1;
 	private int centerX = -1;
 	private int centerY = -1;
+	// partition math, kept free of the View for the host side and benchmarks
+	private final PadGeometry geometry = new PadGeometry();
+	// circle, lines, labels and center ring, drawn once per change
+	private Bitmap staticLayer = null;
+	private Canvas staticCanvas = null;
+	private boolean staticDirty = true;
 	private boolean touched = false;
 	private float touchedX = -1;
 	private float touchedY = -1;
+	// part reported for the finger that is down, -1 if none
+	private int touchedPart = -1;
+	// analog mode: the offset from center instead of the part
+	private boolean analog = false;
+	private final PadStick stick = new PadStick();
+	// high fidelity: every stick change within the batched samples of a
+	// move, oldest first, with its age in microseconds
+	private boolean highFidelity = false;
+	private static final int maxSamples = 64;
+	private final int[] sampleX = new int[maxSamples];
+	private final int[] sampleY = new int[maxSamples];
+	private final int[] sampleAge = new int[maxSamples];
+	private int sampleCount = 0;
 	//
-	private int partition = 1;
-	private double[] vectorX = null;
-	private double[] vectorY = null;
 	private PartitionEventListener partListener = null;
+	private JoystickEventListener stickListener = null;
 	//
 	private boolean drawPartitionAll = true;
 	private int[] drawPartitionLine = null;
@@ -37,7 +55,7 @@ public class Pad extends View {
 	private int colorHotspot = Color.CYAN; 
 	private int colorText = Color.WHITE;
 	private static final double radiusRatio = 1.0;
-	private static final double centerPartSizeRatio = 0.28;
+	private static final double centerPartSizeRatio = PadGeometry.getCenterPartSizeRatio();
 	private static final float hotspotRatio = (float) 0.4;
 
 	interface PartitionEventListener {
@@ -47,13 +65,27 @@ public class Pad extends View {
 	public void setPartitionEventListener(PartitionEventListener listener) {
 		this.partListener = listener;
 	}
+
+	interface JoystickEventListener {
+		/** x and y are signed axis values of getAxisBits() bits, y pointing up. */
+		public abstract void onJoystickEvent(View v, int action, int x, int y);
+		/**
+		 * The changes of a move in high fidelity mode, oldest first. The
+		 * arrays are reused, the last sample is the current position.
+		 */
+		public abstract void onJoystickSamples(View v, int[] x, int[] y, int[] ageMicros, int count);
+	}
+
+	public void setJoystickEventListener(JoystickEventListener listener) {
+		this.stickListener = listener;
+	}
 	
 	public Pad(Context context) {
 		super(context);
 	}
 	
-	public void setDrawPartitionAll(boolean drawAll) { drawPartitionAll = drawAll; }
-	public void setDrawPartitionLine(int[] draw) { drawPartitionLine = draw; }
+	public void setDrawPartitionAll(boolean drawAll) { drawPartitionAll = drawAll; invalidateStatic(); }
+	public void setDrawPartitionLine(int[] draw) { drawPartitionLine = draw; invalidateStatic(); }
 	public void setDrawLabel(int[] drawBetween, String[] drawText) {
 		if((drawBetween==null) || (drawText==null)
 		|| (drawBetween.length != drawText.length*2)) {
@@ -64,78 +96,90 @@ public class Pad extends View {
 		}
 		drawLabelBetween = drawBetween;
 		drawLabelText = drawText;
-		drawLabelX = null;
-		drawLabelY = null;
+		computeLabelPosition();
+		invalidateStatic();
 		//Log.d("ga_log", String.format("setDrawLabel: %d label configured", drawLabelText.length));
 	}
-	public void setColorPad(int color) { colorPad = color; }
-	public void setColorPadLine(int color) { colorPadLine = color; }
-	public void setColorHotspot(int color) { colorHotspot = color; }
-	public void setColorText(int color) { colorText = color; }
+	public void setColorPad(int color) { colorPad = color; invalidateStatic(); }
+	public void setColorPadLine(int color) { colorPadLine = color; invalidateStatic(); }
+	public void setColorHotspot(int color) { colorHotspot = color; invalidate(); }
+	public void setColorText(int color) { colorText = color; invalidateStatic(); }
+	/**
+	 * Set how far past its borders a touched part holds on, see
+	 * {@link PadGeometry#setHysteresis(double, double)}.
+	 */
+	public void setHysteresis(double degrees, double radiusRatio) { geometry.setHysteresis(degrees, radiusRatio); }
+	/**
+	 * Report the offset from center to the JoystickEventListener instead of
+	 * parts to the PartitionEventListener. Only changes of the quantized
+	 * vector are reported, see {@link PadStick}.
+	 */
+	public void setAnalog(boolean analog) {
+		this.analog = analog;
+		touchedPart = -1;
+		stick.reset();
+	}
+	public boolean isAnalog() { return analog; }
+	/**
+	 * In analog mode, also look at the touch samples Android batched into a
+	 * move, see {@link #onPointerMove(MotionEvent, int, float, float)}.
+	 */
+	public void setHighFidelity(boolean highFidelity) { this.highFidelity = highFidelity; }
+	public boolean isHighFidelity() { return highFidelity; }
+	public void setDeadzone(double fraction) { stick.setDeadzone(fraction); }
+	public void setCurve(double exponent) { stick.setCurve(exponent); }
+	public void setAxisBits(int bits) { stick.setBits(bits); }
+	public int getAxisBits() { return stick.getBits(); }
 	public boolean setPartition(int n) {
-		int i;
-		double deg = 2*Math.PI / n;
-		double cos = Math.cos(-deg);
-		double sin = Math.sin(-deg);
-		if(n < 1)
+		if(!geometry.setPartition(n))
 			return false;
-		// rotation clockwise (unit is negative)
-		partition = n;
-		vectorX = new double[n+1];
-		vectorY = new double[n+1];
-		vectorX[0] = vectorX[n] = 0;
-		vectorY[0] = vectorY[n] = currRadius;
-		for(i = 1; i < n; i++) {
-			vectorX[i] = vectorX[i-1]*cos - vectorY[i-1]*sin;
-			vectorY[i] = vectorX[i-1]*sin + vectorY[i-1]*cos;
-		}
-		//
+		computeLabelPosition();
+		invalidateStatic();
 		return true;
 	}
+
+	private void invalidateStatic() {
+		staticDirty = true;
+		invalidate();
+	}
 	
 	public double cross(double x1, double y1, double x2, double y2) {
-		return x1 * y2 - x2 * y1;
+		return PadGeometry.cross(x1, y1, x2, y2);
 	}
 
 	public void getMidUnitVector(double x1, double y1, double x2, double y2, double[] ret) {
-		double nx, ny, len;
-		if(cross(x1, y1, x2, y2) == 0) {
-			// parallel, rotate 90 deg
-			nx = -y1;
-			ny = x1;
-		} else {
-			nx = (x1 + x2) / 2.0;
-			ny = (y1 + y2) / 2.0;
-		}
-		len = Math.sqrt(nx*nx + ny*ny);
-		ret[0] = (nx / len);
-		ret[1] = (ny / len);
-		return;
+		PadGeometry.getMidUnitVector(x1, y1, x2, y2, ret);
 	}
 	
 	private void computeLabelPosition() {
 		int i;
 		float textHeight;
-		if(drawLabelText == null || drawLabelBetween == null)
+		drawLabelX = null;
+		drawLabelY = null;
+		if(drawLabelText == null || drawLabelBetween == null || currRadius <= 0)
 			return;
-		// tune text size
-		int size = 0;
-		do {
-			size += 2;
-			paint.setTextSize(size);
-		} while(paint.measureText("AAAAA") < 2 * currRadius * centerPartSizeRatio);
+		// tune text size: the smallest even size at which five letters
+		// span the center part, text width grows linearly with the size
+		paint.setTextSize(100);
+		float width100 = paint.measureText("AAAAA");
+		int size = 2;
+		if(width100 > 0)
+			size = Math.max(2, 2 * (int) Math.ceil(2 * currRadius * centerPartSizeRatio * 100 / width100 / 2));
+		paint.setTextSize(size);
 		textHeight = paint.ascent() + paint.descent();
 		//
 		//Log.d("ga_log", "PainTextSize = " + Integer.toString(size));
 		drawLabelX = new double[drawLabelText.length];
 		drawLabelY = new double[drawLabelText.length];
+		int partition = geometry.getPartitionCount();
 		for(i = 0; i < drawLabelText.length; i++) {
 			int l0 = drawLabelBetween[i*2+0];
 			int l1 = drawLabelBetween[i*2+1];
 			if(l0 < 0 || l1 < 0 || l0 >= partition || l1 >= partition)
 				continue;
 			double[] uv = new double[2];
-			getMidUnitVector(vectorX[l0],vectorY[l0], vectorX[l1], vectorY[l1], uv);
+			getMidUnitVector(geometry.getVectorX(l0), geometry.getVectorY(l0),
+					geometry.getVectorX(l1), geometry.getVectorY(l1), uv);
 			uv[0] *= currRadius * (0.5 + 0.5 * centerPartSizeRatio);
 			uv[1] *= currRadius * (0.5 + 0.5 * centerPartSizeRatio);
 			drawLabelX[i] = uv[0] - paint.measureText(drawLabelText[i])/2;
@@ -144,38 +188,76 @@ public class Pad extends View {
 	}
 
 	public int getPartition(float x, float y) {
-		int left, mid, right;
-		double vx;
-		double vy;
-		if(partition < 1 || vectorX==null || vectorY==null)
-			return -1;
-		// binary search for the area
-		vx = x - centerX;
-		vy = y - centerY;
-		vy = -1.0 * vy;
-		// click on center?
-		if(vx*vx + vy*vy < centerPartSizeRatio*centerPartSizeRatio*currRadius*currRadius/4)
-			return 0;
-		// not center ... find the correct partition
-		left = 0;
-		right = partition;
-		while(right-left > 1) {
-			mid = (left + right) / 2;
-			if(cross(vectorX[left], vectorY[left], vx, vy) <= 0
-			&& cross(vectorX[mid], vectorY[mid], vx, vy) >= 0) {
-				right = mid;
-			} else {
-				left = mid;
-			}
-		}
-		return 1+left;
+		return geometry.getPartition(x, y);
 	}
 	
 	public boolean onTouch(MotionEvent evt) {
+		if(evt.getActionMasked() == MotionEvent.ACTION_MOVE)
+			return onPointerMove(evt, 0, 0, 0);
+		return onPointer(evt.getActionMasked(), evt.getX(), evt.getY());
+	}
+
+	/**
+	 * Handle a move of one finger of evt. In high fidelity analog mode the
+	 * batched samples are mapped one by one and every change goes to
+	 * onJoystickSamples() in one call, otherwise only the newest counts.
+	 * @param index  Pointer index of the finger
+	 * @param offsetX  Added to the event's coordinates to get view coordinates
+	 */
+	public boolean onPointerMove(MotionEvent evt, int index, float offsetX, float offsetY) {
+		float x = evt.getX(index) + offsetX;
+		float y = evt.getY(index) + offsetY;
+		int history = evt.getHistorySize();
+		if(!analog || !highFidelity || history == 0 || !touched || currRadius <= 0)
+			return onPointer(MotionEvent.ACTION_MOVE, x, y);
+		long time = evt.getEventTime();
+		sampleCount = 0;
+		for(int h = 0; h < history; h++) {
+			float hx = evt.getHistoricalX(index, h) + offsetX;
+			float hy = evt.getHistoricalY(index, h) + offsetY;
+			// keep room for the current position
+			if(updateStick(hx, hy) && sampleCount < maxSamples - 1)
+				addSample((int) ((time - evt.getHistoricalEventTime(h)) * 1000));
+		}
+		if(updateStick(x, y))
+			addSample(0);
+		touchedX = x;
+		touchedY = y;
+		this.postInvalidate();
+		if(sampleCount == 0)
+			return true;
+		if(sampleCount == 1 && sampleAge[0] == 0) {
+			// nothing happened in between, a plain move does
+			if(stickListener != null)
+				stickListener.onJoystickEvent(this, MotionEvent.ACTION_MOVE, stick.getX(), stick.getY());
+			return true;
+		}
+		if(stickListener != null)
+			stickListener.onJoystickSamples(this, sampleX, sampleY, sampleAge, sampleCount);
+		return true;
+	}
+
+	private void addSample(int ageMicros) {
+		sampleX[sampleCount] = stick.getX();
+		sampleY[sampleCount] = stick.getY();
+		sampleAge[sampleCount] = ageMicros;
+		sampleCount++;
+	}
+
+	// in radii, y pointing up
+	private boolean updateStick(float x, float y) {
+		return stick.update((x - centerX) / (double) currRadius,
+				(centerY - y) / (double) currRadius);
+	}
+
+	/**
+	 * Handle one finger, for a caller that routes the pointers of a
+	 * MotionEvent itself.
+	 * @param action  MotionEvent action of the finger
+	 * @param x  Position in view coordinates
+	 */
+	public boolean onPointer(int action, float x, float y) {
 		int part = -1;
-		int action = evt.getActionMasked();
-		float x = evt.getX();
-		float y = evt.getY();
 		// need to handle out of range?
 //		float dx = x - centerX;
 //		float dy = y - centerY;
@@ -187,14 +269,16 @@ public class Pad extends View {
 //			return true;
 //		}
 		//
-		part = getPartition(x, y);
-		//
+		if(analog)
+			return onStickTouch(action, x, y);
 		switch(action) {
 		case MotionEvent.ACTION_DOWN:
 		case MotionEvent.ACTION_POINTER_DOWN:
+			part = getPartition(x, y);
 			touchedX = x;
 			touchedY = y;
 			touched = true;
+			touchedPart = part;
 			this.postInvalidate();
 			if(partListener != null) {
 				partListener.onPartitionEvent(this, action, part);
@@ -202,11 +286,16 @@ public class Pad extends View {
 			break;
 		case MotionEvent.ACTION_UP:
 		case MotionEvent.ACTION_POINTER_UP:
+		case MotionEvent.ACTION_CANCEL:
+			// release the part that was reported, not the one under the finger
+			part = touchedPart >= 0 ? touchedPart : getPartition(x, y);
 			touchedX = -1;
 			touchedY = -1;
 			touched = false;
+			touchedPart = -1;
 			if(partListener != null) {
-				partListener.onPartitionEvent(this, action, part);
+				partListener.onPartitionEvent(this, action == MotionEvent.ACTION_CANCEL
+						? MotionEvent.ACTION_UP : action, part);
 			}
 			this.postInvalidate();
 			break;
@@ -214,6 +303,11 @@ public class Pad extends View {
 			touchedX = x;
 			touchedY = y;
 			this.postInvalidate();
+			// only transitions are reported, with hysteresis at the borders
+			part = geometry.getPartition(x, y, touchedPart);
+			if(part == touchedPart)
+				break;
+			touchedPart = part;
 			if(partListener != null) {
 				partListener.onPartitionEvent(this, action, part);
 			}
@@ -221,22 +315,98 @@ public class Pad extends View {
 		}
 		return true;
 	}
+
+	private boolean onStickTouch(int action, float x, float y) {
+		switch(action) {
+		case MotionEvent.ACTION_DOWN:
+		case MotionEvent.ACTION_POINTER_DOWN:
+		case MotionEvent.ACTION_MOVE:
+			touchedX = x;
+			touchedY = y;
+			touched = true;
+			this.postInvalidate();
+			if(currRadius <= 0)
+				break;
+			boolean changed = updateStick(x, y);
+			if(action == MotionEvent.ACTION_MOVE && !changed)
+				break;
+			if(stickListener != null) {
+				stickListener.onJoystickEvent(this, action, stick.getX(), stick.getY());
+			}
+			break;
+		case MotionEvent.ACTION_UP:
+		case MotionEvent.ACTION_POINTER_UP:
+		case MotionEvent.ACTION_CANCEL:
+			touchedX = -1;
+			touchedY = -1;
+			touched = false;
+			// the stick springs back to center
+			stick.reset();
+			if(stickListener != null) {
+				stickListener.onJoystickEvent(this, action == MotionEvent.ACTION_CANCEL
+						? MotionEvent.ACTION_UP : action, 0, 0);
+			}
+			this.postInvalidate();
+			break;
+		}
+		return true;
+	}
 	
 	@Override
-	public void onDraw(Canvas canvas) {
-		int i;
-		int width = this.getWidth();
-		int height = this.getHeight();
-		int radius = (int) ((width < height ? width : height) / 2 * radiusRatio);
+	protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+		super.onSizeChanged(width, height, oldWidth, oldHeight);
 		// assume width == height!
-		if(width != currWidth || height != currHeight) {
-			centerX = width/2;
-			centerY = height/2;
-			currWidth = width;
-			currHeight = height;
-			currRadius = radius;
-			setPartition(partition);
+		centerX = width/2;
+		centerY = height/2;
+		currWidth = width;
+		currHeight = height;
+		currRadius = (int) ((width < height ? width : height) / 2 * radiusRatio);
+		geometry.setBounds(centerX, centerY, currRadius);
+		computeLabelPosition();
+		releaseStaticLayer();
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		releaseStaticLayer();
+	}
+
+	private void releaseStaticLayer() {
+		if(staticLayer != null)
+			staticLayer.recycle();
+		staticLayer = null;
+		staticCanvas = null;
+		staticDirty = true;
+	}
+
+	@Override
+	public void onDraw(Canvas canvas) {
+		if(currWidth <= 0 || currHeight <= 0)
+			return;
+		if(staticLayer == null) {
+			staticLayer = Bitmap.createBitmap(currWidth, currHeight, Bitmap.Config.ARGB_8888);
+			staticCanvas = new Canvas(staticLayer);
+			staticDirty = true;
+		}
+		if(staticDirty) {
+			staticLayer.eraseColor(Color.TRANSPARENT);
+			drawStatic(staticCanvas);
+			staticDirty = false;
 		}
+		canvas.drawBitmap(staticLayer, 0, 0, null);
+		//
+		if(touched) {
+			paint.setColor(colorHotspot);
+			canvas.drawCircle(touchedX, touchedY, currRadius*hotspotRatio, paint);
+		}
+	}
+
+	// everything but the hotspot, only changes with the size and the setters
+	private void drawStatic(Canvas canvas) {
+		int i;
+		int radius = currRadius;
+		int partition = geometry.getPartitionCount();
 		// draw big circle
 		paint.setColor(colorPad);
 		canvas.drawCircle(centerX, centerY, radius, paint);
@@ -245,22 +415,21 @@ public class Pad extends View {
 		if(drawPartitionAll) {
 			for(i = 0; i < partition; i++) {
 				canvas.drawLine((float) centerX, (float) centerY,
-						(float) vectorX[i]+centerX, (float) -vectorY[i]+centerY, paint);
+						(float) geometry.getVectorX(i)+centerX,
+						(float) -geometry.getVectorY(i)+centerY, paint);
 			}
 		} else if(drawPartitionLine != null) {
 			for(i = 0; i < drawPartitionLine.length; i++) {
 				if(drawPartitionLine[i] < 0 || drawPartitionLine[i] >= partition)
 					continue;
 				canvas.drawLine((float) centerX, (float) centerY,
-						(float) vectorX[drawPartitionLine[i]]+centerX,
-						(float) -vectorY[drawPartitionLine[i]]+centerY, paint);
+						(float) geometry.getVectorX(drawPartitionLine[i])+centerX,
+						(float) -geometry.getVectorY(drawPartitionLine[i])+centerY, paint);
 			}
 		}
 		// draw label
 		paint.setColor(colorText);
-		if(drawLabelBetween != null && drawLabelText != null) {
-			if(drawLabelX == null)
-				computeLabelPosition();
+		if(drawLabelX != null) {
 			for(i = 0; i < drawLabelText.length; i++) {
 				canvas.drawText(drawLabelText[i],
 						centerX + (float) drawLabelX[i],
@@ -273,10 +442,5 @@ public class Pad extends View {
 		canvas.drawCircle(centerX, centerY, (int) ((centerPartSizeRatio+0.01)*radius), paint);
 		paint.setColor(colorPad);
 		canvas.drawCircle(centerX, centerY, (int) ((centerPartSizeRatio-0.01)*radius), paint);
-		//
-		if(touched) {
-			paint.setColor(colorHotspot);
-			canvas.drawCircle(touchedX, touchedY, radius*hotspotRatio, paint);
-		}
 	}
 }
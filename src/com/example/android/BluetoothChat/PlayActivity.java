@@ -1,5 +1,6 @@
 package com.example.android.BluetoothChat;
 
+import com.example.android.BluetoothChat.Pad.JoystickEventListener;
 import com.example.android.BluetoothChat.Pad.PartitionEventListener;
 import android.os.Bundle;
 import android.view.Menu;
@@ -15,13 +16,16 @@ import android.view.MotionEvent;
 import android.annotation.SuppressLint;
 import android.app.ActionBar;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import android.widget.ArrayAdapter;
@@ -37,10 +41,12 @@ import android.hardware.SensorEventListener;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
 
-import java.io.*;
+import java.io.IOException;
+import java.util.Arrays;
+
 
 public class PlayActivity extends Activity implements 
-PartitionEventListener, OnTouchListener, SensorEventListener{
+PartitionEventListener, JoystickEventListener, OnTouchListener, SensorEventListener{
     // Debugging
     private static final String TAG = "BluetoothChat";
     private static final boolean D = true;
@@ -56,6 +62,9 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
     public static final String DEVICE_NAME = "device_name";
     public static final String TOAST = "toast";
 
+    // Combining window for control frames, see BluetoothChatService.setBatchWindow
+    private static final long BATCH_WINDOW_NS = 2000000L;
+
     // Intent request codes
     private static final int REQUEST_CONNECT_DEVICE_SECURE = 1;
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
@@ -71,6 +80,45 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
     private BluetoothAdapter mBluetoothAdapter = null;
     // Member object for the chat services
     private BluetoothChatService mChatService = null;
+    // Wi-Fi links to a host on the same network, see the tcp_connect and
+    // udp_connect menu items
+    private final TransportFactory mTcpTransports = new NioTcpTransportFactory();
+    private final TransportFactory mUdpTransports = new UdpTransportFactory();
+    private String mTcpAddress = "";
+    // Reusable encoder for control events, only touched on the UI thread
+    private final EventEncoder mEncoder = new EventEncoder();
+    // Delta coder for the accelerometer stream in the compact format
+    private final AccelerationCodec.Encoder mAccelEncoder = new AccelerationCodec.Encoder();
+    // Event time of the touch being routed, in nanoseconds
+    private long mPadEventTime;
+
+    // Touch routing, see onTouch(): the controls fingers can hold, the
+    // event each button sends, and which control each pointer id holds
+    private static final int CONTROL_NONE = -1;
+    private static final int CONTROL_PAD = 0;
+    private static final int CONTROL_MOUSE_LEFT = 1;
+    private static final int CONTROL_MOUSE_RIGHT = 2;
+    private static final int CONTROL_ESC = 3;
+    private static final int CONTROL_SPACE = 4;
+    private static final int CONTROL_COUNT = 5;
+    // Pointer ids are small, a finger with a larger one is ignored
+    private static final int MAX_POINTERS = 32;
+    private final View[] mControls = new View[CONTROL_COUNT];
+    private final int[] mControlHead = new int[CONTROL_COUNT];
+    private final int[] mControlCode = new int[CONTROL_COUNT];
+    private final int[] mControlKeycode = new int[CONTROL_COUNT];
+    // Fingers down on each control, a button is released with the last one
+    private final int[] mControlPointers = new int[CONTROL_COUNT];
+    private final int[] mPointerControl = new int[MAX_POINTERS];
+    // Events of the MotionEvent being routed, they go out as one frame
+    // sent the most careful way any of them asks for
+    private static final int SEND_LATEST = 0;
+    private static final int SEND_QUEUED = 1;
+    private static final int SEND_URGENT = 2;
+    private boolean mTouchBatch;
+    private int mTouchEvents;
+    private int mTouchSend;
+    private boolean mTouchPad;
     
     //Sensor Views
     private TextView mAccXText;
@@ -122,6 +170,8 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
         this.mSensorManager = (SensorManager)getSystemService(SENSOR_SERVICE);
         this.mOrientationSensor = this.mSensorManager
         		.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+
+        Arrays.fill(mPointerControl, CONTROL_NONE);
 	}
 	
     @Override
@@ -157,43 +207,19 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
             }
         }
         
+        // Buttons go through the same routing as the pad, so they work
+        // while another finger holds the pad
         this.mMouseLeftButton = (Button)findViewById(R.id.button_leftclick);
-        this.mMouseLeftButton.setOnTouchListener(new OnTouchListener() {
-        	@Override
-        	public boolean onTouch(View v, MotionEvent evt) {
-        		int action = evt.getActionMasked();
-        		return handleButtonTouch(Constants.MOUSE_KEY, action, SDL2.Button.LEFT, 0);
-        	}
-        });
+        setControl(CONTROL_MOUSE_LEFT, mMouseLeftButton, Constants.MOUSE_KEY, SDL2.Button.LEFT, 0);
         this.mMouseRightButton = (Button)findViewById(R.id.button_rightclick);
-        this.mMouseRightButton.setOnTouchListener(new OnTouchListener() {
-        	@Override
-        	public boolean onTouch(View v, MotionEvent evt) {
-        		int action = evt.getActionMasked();
-        		return handleButtonTouch(Constants.MOUSE_KEY, action, SDL2.Button.RIGHT, 0);
-        	}
-        });
+        setControl(CONTROL_MOUSE_RIGHT, mMouseRightButton, Constants.MOUSE_KEY, SDL2.Button.RIGHT, 0);
         this.mEscButton = (Button)findViewById(R.id.button_esc) ;
-        this.mEscButton.setOnClickListener(new OnClickListener() {
-        	@Override
-        	public void onClick(View v) {
-        		int action = MotionEvent.ACTION_DOWN;
-        		handleButtonTouch(Constants.KEY_EVENT, action, SDL2.Scancode.ESCAPE, SDL2.Keycode.ESCAPE);
-        		action = MotionEvent.ACTION_UP;
-        		handleButtonTouch(Constants.KEY_EVENT, action, SDL2.Scancode.ESCAPE, SDL2.Keycode.ESCAPE);
-        	}
-        });
+        setControl(CONTROL_ESC, mEscButton, Constants.KEY_EVENT, SDL2.Scancode.ESCAPE, SDL2.Keycode.ESCAPE);
         this.mSpaceButton = (Button)findViewById(R.id.button_space) ;
-        this.mSpaceButton.setOnTouchListener(new OnTouchListener() {
-        	@Override
-        	public boolean onTouch(View v, MotionEvent evt) {
-        		int action = evt.getActionMasked();
-        		return handleButtonTouch(Constants.KEY_EVENT, action, SDL2.Scancode.SPACE, SDL2.Keycode.SPACE);
-        	}
-        });
-        //Sensor
+        setControl(CONTROL_SPACE, mSpaceButton, Constants.KEY_EVENT, SDL2.Scancode.SPACE, SDL2.Keycode.SPACE);
+        //Sensor, faster than SENSOR_RATE_HZ so the filter has samples to smooth
         this.mSensorManager.registerListener(this,this.mOrientationSensor,
-        		SensorManager.SENSOR_DELAY_UI);
+        		SensorManager.SENSOR_DELAY_GAME);
     }
 
     private void setUpBluetooth() {
@@ -207,12 +233,29 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
 		padLeft.setAlpha((float) 0.5);
 		padLeft.setPartition(12);
 		padLeft.setPartitionEventListener(this);
-		padLeft.setOnTouchListener(this);
+		padLeft.setJoystickEventListener(this);
 		padLeft.setDrawPartitionAll(false);
 		placeView(padLeft, viewWidth/30, viewHeight-padSize-viewHeight/30, padSize, padSize);
+		setControl(CONTROL_PAD, padLeft, 0, 0, 0);
+		// The view a gesture starts on gets all of its fingers, and a
+		// gesture starting next to the controls goes to the layout
+		mRelativeLayout.setMotionEventSplittingEnabled(false);
+		mRelativeLayout.setOnTouchListener(this);
 		
         // Initialize the BluetoothChatService to perform bluetooth connections
         mChatService = new BluetoothChatService(this, mHandler);
+        mChatService.setBatchWindow(BATCH_WINDOW_NS);
+        // Let the host measure latency and spot lost frames
+        mChatService.setFrameStamps(true);
+        mChatService.setAckListener(new FrameCodec.FrameListener() {
+        	@Override
+        	public void onFrame(int type, int flags, byte[] buffer, int offset, int length) {
+        		// Runs on the connection thread, onAck() only stores the seq
+        		if (length >= 2 && buffer[offset] == Constants.ACCELERATION) {
+        			mAccelEncoder.onAck(buffer[offset + 1]);
+        		}
+        	}
+        });
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
@@ -224,6 +267,7 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
         if(D) Log.e(TAG, "- ON PAUSE -");
         
         mSensorManager.unregisterListener(this);
+        mAccelFilter.reset();
 
     }
 
@@ -252,48 +296,36 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
 		mRelativeLayout.addView(v, params);
 	}
     
-    private void sendKeyCode(int head, int code) {
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(bout);
-		try {
-			dout.writeInt(head); //Head
-			dout.writeInt(code);  
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		byte[] control = bout.toByteArray();
-		sendMessage(control);
-    }
-    
     /**
      * Orientation Sensor
      */
     private final int BALENCE = 0;
     private final int NEGATIVE = -1;
     private final int POSITIVE = 1;
-    private final int RATE = 6;   //control send rate
+    // Tilt stream: sent at most SENSOR_RATE_HZ, low-passed at
+    // SENSOR_CUTOFF_HZ, and only when an axis moves SENSOR_DEADBAND m/s^2
+    private static final double SENSOR_RATE_HZ = 20;
+    private static final double SENSOR_CUTOFF_HZ = 5;
+    private static final float SENSOR_DEADBAND = 0.1f;
+    private final AccelerationFilter mAccelFilter =
+    		new AccelerationFilter(SENSOR_RATE_HZ, SENSOR_CUTOFF_HZ, SENSOR_DEADBAND);
     private int xState = BALENCE;
     private int yState = BALENCE;
-    private int cnt = 0;
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {}
     @SuppressWarnings("deprecation")
 	@Override
     public void onSensorChanged(SensorEvent event) {
-    	if (cnt == RATE) {
-    		cnt = 0;
-    	} else {
-    		cnt++;
+    	if (!mAccelFilter.offer(event.timestamp, event.values[0], event.values[1], event.values[2])) {
     		return;
     	}
-    	this.mAccXText.setText("x:" + event.values[0]);
-    	this.mAccYText.setText("y:" + event.values[1]);
     	int myXState = this.xState;
     	int myYState = this.yState;
-    	float x = event.values[0];
-    	float y = event.values[1];
-    	float z = event.values[2];
+    	float x = mAccelFilter.getX();
+    	float y = mAccelFilter.getY();
+    	float z = mAccelFilter.getZ();
+    	this.mAccXText.setText("x:" + x);
+    	this.mAccYText.setText("y:" + y);
     	
 //    	if (x<-4.0)	   myXState = this.NEGATIVE;
 //    	else if (x>4.0)myXState = this.POSITIVE;
@@ -304,24 +336,37 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
 //    	else 			myYState = this.BALENCE;
     	
 //    	if (myXState != this.xState  ||  myYState != this.yState) {
-    		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    		DataOutputStream dout = new DataOutputStream(bout);
-    		try {
-    			dout.writeInt(Constants.ACCELERATION); //Head
-    			dout.writeFloat(x);
-    			dout.writeFloat(y);
-    			dout.writeFloat(z);
-    		} catch (IOException e) {
-    			// TODO Auto-generated catch block
-    			e.printStackTrace();
+    		mAccelEncoder.put(mEncoder.reset(), x, y, z);
+    		if (mAccelEncoder.isKeyframe()) {
+    			// Later deltas refer to it: no delta still waiting in the slot
+    			// may arrive after it, and it may neither be conflated nor
+    			// dropped unnoticed. Until it is queued, deltas do not use it.
+    			mChatService.retractLatest(BluetoothChatService.SOURCE_ACCELEROMETER);
+    			if (sendMessage(mEncoder, true, sensorTime(event.timestamp))) {
+    				mAccelEncoder.keyframeQueued();
+    			}
+    		} else {
+    			sendLatest(BluetoothChatService.SOURCE_ACCELEROMETER, mEncoder,
+    					sensorTime(event.timestamp));
     		}
-    		byte[] control = bout.toByteArray();
-    		sendMessage(control);
 //    	}
 //    	this.xState = myXState;
 //    	this.yState = myYState;
     }
     
+    /**
+     * Move a SensorEvent timestamp onto the System.nanoTime() clock that
+     * touch events use. Many devices stamp sensors with elapsed realtime,
+     * which runs ahead of uptime by the time spent in deep sleep.
+     */
+    private static long sensorTime(long timestamp) {
+        long now = System.nanoTime();
+        if (timestamp - now > 100000000L) {
+            timestamp -= (SystemClock.elapsedRealtime() - SystemClock.uptimeMillis()) * 1000000L;
+        }
+        return timestamp;
+    }
+
     private void ensureDiscoverable() {
         if(D) Log.d(TAG, "ensure discoverable");
         if (mBluetoothAdapter.getScanMode() !=
@@ -332,13 +377,41 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
         }
     }
     
-    //Reload sendMessage
-    private final void sendMessage(byte[] buffer){
+    /**
+     * @param urgent Send ahead of samples and skip the combining window,
+     *  for key, button and pad transitions
+     * @param captureNanos The event time of the input, in nanoseconds
+     * @return false if the payload was not queued
+     */
+    private final boolean sendMessage(EventEncoder encoder, boolean urgent, long captureNanos){
+        if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
+            Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        recordEncoded(encoder, captureNanos);
+        return mChatService.write(encoder.array(), 0, encoder.length(), encoder.getDataType(), urgent,
+                captureNanos);
+    }
+
+    /**
+     * Send the newest payload of a continuous source, replacing any unsent one.
+     * @param source One of the BluetoothChatService.SOURCE_ constants
+     * @param captureNanos The event time of the input, in nanoseconds
+     */
+    private final void sendLatest(int source, EventEncoder encoder, long captureNanos){
         if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
             Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
             return;
         }
-        mChatService.write(buffer, Constants.CONTROL_DATA);
+        recordEncoded(encoder, captureNanos);
+        mChatService.writeLatest(source, encoder.array(), 0, encoder.length(), encoder.getDataType(),
+                captureNanos);
+    }
+
+    private final void recordEncoded(EventEncoder encoder, long captureNanos){
+        int type = InputLatency.eventType(encoder.getDataType(), encoder.array(), 0, encoder.length());
+        mChatService.getLatency().record(InputLatency.STAGE_ENCODE, type,
+                InputLatency.micros(captureNanos), InputLatency.now());
     }
     
     private final void setStatus(int resId) {
@@ -360,6 +433,8 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
                 switch (msg.arg1) {
                 case BluetoothChatService.STATE_CONNECTED:
                     setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
+                    // The new host has none of our references
+                    mAccelEncoder.reset();
 //                    mConversationArrayAdapter.clear();
                     break;
                 case BluetoothChatService.STATE_CONNECTING:
@@ -368,6 +443,7 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
                 case BluetoothChatService.STATE_LISTEN:
                 case BluetoothChatService.STATE_NONE:
                     setStatus(R.string.title_not_connected);
+                    if(D) Log.d(TAG, "metrics\n" + mChatService.getMetrics(null));
                     break;
                 }
                 break;
@@ -440,6 +516,31 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
         }
     }
     
+    private void showTcpConnectDialog(final TransportFactory transports, int title) {
+        final EditText address = new EditText(this);
+        address.setHint(getString(R.string.tcp_connect_hint));
+        address.setText(mTcpAddress);
+        new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setView(address)
+                .setPositiveButton(R.string.connect, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mTcpAddress = address.getText().toString().trim();
+                        if (mTcpAddress.length() == 0) return;
+                        try {
+                            TcpTransportFactory.parse(mTcpAddress, TcpTransportFactory.DEFAULT_PORT);
+                        } catch (IOException e) {
+                            Toast.makeText(PlayActivity.this, R.string.bad_address, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        mChatService.connect(transports, mTcpAddress, true);
+                    }
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
     private void connectDevice(Intent data, boolean secure) {
         // Get the device MAC address
         String address = data.getExtras()
@@ -451,49 +552,174 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
     }
     
 
+    private void setControl(int control, View v, int head, int code, int keycode) {
+    	mControls[control] = v;
+    	mControlHead[control] = head;
+    	mControlCode[control] = code;
+    	mControlKeycode[control] = keycode;
+    	v.setOnTouchListener(this);
+    }
+
+	/**
+	 * Route every finger of a gesture to the control it went down on, and
+	 * send what they changed as one frame. Motion event splitting is off in
+	 * the layout, so v is the view the gesture started on and evt holds all
+	 * of its fingers.
+	 */
 	@Override
     public boolean onTouch(View v, MotionEvent evt) {
-		int count = evt.getPointerCount();
-		if(count==1  &&  v == padLeft ) {
-			if(((Pad) v).onTouch(evt));
-				return true;
+		int action = evt.getActionMasked();
+		int index = evt.getActionIndex();
+		// All controls are children of the layout
+		float dx = v == mRelativeLayout ? 0 : v.getLeft();
+		float dy = v == mRelativeLayout ? 0 : v.getTop();
+		mPadEventTime = evt.getEventTime() * 1000000L;
+		mTouchBatch = true;
+		switch (action) {
+		case MotionEvent.ACTION_DOWN:
+		case MotionEvent.ACTION_POINTER_DOWN:
+			pointerDown(evt.getPointerId(index), evt.getX(index) + dx, evt.getY(index) + dy);
+			break;
+		case MotionEvent.ACTION_MOVE:
+			for (int i = 0; i < evt.getPointerCount(); i++) {
+				pointerMove(evt, i, dx, dy);
+			}
+			break;
+		case MotionEvent.ACTION_UP:
+		case MotionEvent.ACTION_POINTER_UP:
+			pointerUp(evt.getPointerId(index), evt.getX(index) + dx, evt.getY(index) + dy,
+					MotionEvent.ACTION_UP);
+			break;
+		case MotionEvent.ACTION_CANCEL:
+			for (int id = 0; id < MAX_POINTERS; id++) {
+				pointerUp(id, 0, 0, MotionEvent.ACTION_CANCEL);
+			}
+			break;
 		}
-		return false;
+		mTouchBatch = false;
+		sendTouchEvents();
+		return true;
     }
-    
-    private boolean handleButtonTouch(int keyEvt, int action, int scancode, int keycode){
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(bout);
-		try {
-			dout.writeInt(keyEvt); //Head
-			dout.writeInt(action);
-			dout.writeInt(scancode);
-			dout.writeInt(keycode);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		byte[] control = bout.toByteArray();
-		sendMessage(control);
-    	return false;
+
+    private void pointerDown(int id, float x, float y) {
+    	if (id < 0 || id >= MAX_POINTERS) return;
+    	int control = CONTROL_NONE;
+    	for (int c = 0; c < CONTROL_COUNT; c++) {
+    		View v = mControls[c];
+    		if (v != null && v.getVisibility() == View.VISIBLE
+    				&& x >= v.getLeft() && x < v.getRight() && y >= v.getTop() && y < v.getBottom()) {
+    			control = c;
+    			break;
+    		}
+    	}
+    	// The pad follows a single finger
+    	if (control == CONTROL_PAD && mControlPointers[CONTROL_PAD] > 0) control = CONTROL_NONE;
+    	mPointerControl[id] = control;
+    	if (control == CONTROL_NONE || mControlPointers[control]++ > 0) return;
+    	View v = mControls[control];
+    	if (control == CONTROL_PAD) {
+    		padLeft.onPointer(MotionEvent.ACTION_DOWN, x - v.getLeft(), y - v.getTop());
+    	} else {
+    		v.setPressed(true);
+    		touchEncoder().putButton(mControlHead[control], MotionEvent.ACTION_DOWN,
+    				mControlCode[control], mControlKeycode[control]);
+    		touchEventAdded(SEND_URGENT, false);
+    	}
+    }
+
+    /**
+     * @param dx Offset of the event's coordinates in the layout
+     */
+    private void pointerMove(MotionEvent evt, int index, float dx, float dy) {
+    	int id = evt.getPointerId(index);
+    	if (id < 0 || id >= MAX_POINTERS || mPointerControl[id] != CONTROL_PAD) return;
+    	padLeft.onPointerMove(evt, index, dx - padLeft.getLeft(), dy - padLeft.getTop());
+    }
+
+    /**
+     * @param action ACTION_UP, or ACTION_CANCEL when the gesture is aborted
+     */
+    private void pointerUp(int id, float x, float y, int action) {
+    	if (id < 0 || id >= MAX_POINTERS) return;
+    	int control = mPointerControl[id];
+    	mPointerControl[id] = CONTROL_NONE;
+    	if (control == CONTROL_NONE || --mControlPointers[control] > 0) return;
+    	View v = mControls[control];
+    	if (control == CONTROL_PAD) {
+    		padLeft.onPointer(action, x - v.getLeft(), y - v.getTop());
+    	} else {
+    		v.setPressed(false);
+    		touchEncoder().putButton(mControlHead[control], MotionEvent.ACTION_UP,
+    				mControlCode[control], mControlKeycode[control]);
+    		touchEventAdded(SEND_URGENT, false);
+    	}
+    }
+
+    /**
+     * Return mEncoder ready for one more touch event. A legacy payload
+     * holds a single event, so the one before goes out first.
+     */
+    private EventEncoder touchEncoder() {
+    	if (mTouchEvents > 0 && (!mTouchBatch || mEncoder.getFormat() != EventEncoder.FORMAT_COMPACT)) {
+    		sendTouchEvents();
+    	}
+    	if (mTouchEvents == 0) mEncoder.reset();
+    	return mEncoder;
+    }
+
+    /**
+     * @param send SEND_URGENT for a transition, SEND_QUEUED for a move that
+     *  must not be conflated, SEND_LATEST for one that may
+     * @param pad The event is from the pad
+     */
+    private void touchEventAdded(int send, boolean pad) {
+    	mTouchEvents++;
+    	mTouchSend = Math.max(mTouchSend, send);
+    	mTouchPad |= pad;
+    	if (!mTouchBatch) sendTouchEvents();
+    }
+
+    private void sendTouchEvents() {
+    	if (mTouchEvents == 0) return;
+    	if (mTouchSend == SEND_LATEST) {
+    		// Only pad moves, only the newest position matters
+    		sendLatest(BluetoothChatService.SOURCE_PAD, mEncoder, mPadEventTime);
+    	} else {
+    		// A pending move must not arrive after this one
+    		if (mTouchPad && mChatService.getState() == BluetoothChatService.STATE_CONNECTED) {
+    			mChatService.retractLatest(BluetoothChatService.SOURCE_PAD);
+    		}
+    		sendMessage(mEncoder, mTouchSend == SEND_URGENT, mPadEventTime);
+    	}
+    	mTouchEvents = 0;
+    	mTouchSend = SEND_LATEST;
+    	mTouchPad = false;
     }
     
     @Override 
     public void onPartitionEvent(View v, int action, int part) {
 		if(v == padLeft) {
-    		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    		DataOutputStream dout = new DataOutputStream(bout);
-    		try {
-    			dout.writeInt(Constants.ARROW_KEY); //Head
-				dout.writeInt(action);
-				dout.writeInt(part);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-    		byte[] control = bout.toByteArray();
-    		sendMessage(control);
-			return;
+    		touchEncoder().putArrow(action, part);
+    		touchEventAdded(action == MotionEvent.ACTION_MOVE ? SEND_LATEST : SEND_URGENT, true);
+		}
+    }
+
+    @Override
+    public void onJoystickEvent(View v, int action, int x, int y) {
+		if(v == padLeft) {
+    		touchEncoder().putJoystick(action, x, y, padLeft.getAxisBits());
+    		touchEventAdded(action == MotionEvent.ACTION_MOVE ? SEND_LATEST : SEND_URGENT, true);
+		}
+    }
+
+    @Override
+    public void onJoystickSamples(View v, int[] x, int[] y, int[] ageMicros, int count) {
+		if(v == padLeft) {
+    		touchEncoder().putJoystickSamples(padLeft.getAxisBits(), x, y, ageMicros, count);
+    		// The samples are the point, a later move must not replace them.
+    		// The legacy format only gets the newest, that one may be.
+    		touchEventAdded(mEncoder.getFormat() == EventEncoder.FORMAT_COMPACT
+    				? SEND_QUEUED : SEND_LATEST, true);
 		}
     }
     
@@ -523,6 +749,30 @@ PartitionEventListener, OnTouchListener, SensorEventListener{
             // Ensure this device is discoverable by others
             ensureDiscoverable();
             return true;
+        case R.id.tcp_connect:
+            // Ask for the host:port of a receiver on the network
+            showTcpConnectDialog(mTcpTransports, R.string.tcp_connect);
+            return true;
+        case R.id.udp_connect:
+            // Same, with samples on datagrams that may be lost
+            showTcpConnectDialog(mUdpTransports, R.string.udp_connect);
+            return true;
+        case R.id.compact_events:
+            // Switch between the legacy int layout and the compact encoding
+            item.setChecked(!item.isChecked());
+            mEncoder.setFormat(item.isChecked()
+                    ? EventEncoder.FORMAT_COMPACT : EventEncoder.FORMAT_LEGACY);
+            return true;
+        case R.id.analog_pad:
+            // Switch the pad between sectors and an analog stick
+            item.setChecked(!item.isChecked());
+            padLeft.setAnalog(item.isChecked());
+            return true;
+        case R.id.high_fidelity:
+            // Send the touch samples batched into each analog pad move
+            item.setChecked(!item.isChecked());
+            padLeft.setHighFidelity(item.isChecked());
+            return true;
         }
         return false;
 	}
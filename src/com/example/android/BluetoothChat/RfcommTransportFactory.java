@@ -0,0 +1,104 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * Bluetooth RFCOMM links, secure and insecure, addressed by MAC address.
+ */
+public class RfcommTransportFactory implements TransportFactory {
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "BluetoothChatSecure";
+    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+
+    // Unique UUID for this application
+    private static final UUID MY_UUID_SECURE =
+        UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final UUID MY_UUID_INSECURE =
+        UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+
+    private final BluetoothAdapter mAdapter;
+
+    public RfcommTransportFactory(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    public String getName() {
+        return "RFCOMM";
+    }
+
+    public Transport open(String address, boolean secure) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        // Get a BluetoothSocket for a connection with the
+        // given BluetoothDevice
+        BluetoothSocket socket;
+        if (secure) {
+            socket = device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
+        } else {
+            socket = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+        }
+        return new RfcommTransport(socket, device, true);
+    }
+
+    public Endpoint listen(boolean secure) throws IOException {
+        final BluetoothServerSocket server;
+        if (secure) {
+            server = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, MY_UUID_SECURE);
+        } else {
+            server = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                    NAME_INSECURE, MY_UUID_INSECURE);
+        }
+        return new Endpoint() {
+            public Transport accept() throws IOException {
+                BluetoothSocket socket = server.accept();
+                return new RfcommTransport(socket, socket.getRemoteDevice(), false);
+            }
+
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    private class RfcommTransport implements Transport {
+        private final BluetoothSocket mSocket;
+        private final BluetoothDevice mDevice;
+        private final boolean mOutgoing;
+
+        RfcommTransport(BluetoothSocket socket, BluetoothDevice device, boolean outgoing) {
+            mSocket = socket;
+            mDevice = device;
+            mOutgoing = outgoing;
+        }
+
+        public void connect() throws IOException {
+            if (!mOutgoing) return;
+            // Always cancel discovery because it will slow down a connection
+            mAdapter.cancelDiscovery();
+            mSocket.connect();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        public String getRemoteName() {
+            return mDevice.getName();
+        }
+
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
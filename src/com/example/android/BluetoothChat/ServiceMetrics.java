@@ -0,0 +1,342 @@
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of a {@link BluetoothChatService}, kept across connections.
+ *
+ * Every counter belongs to one block and every block has a single writer:
+ * the writer thread counts what goes out, the connection thread what comes
+ * in, and connection events are counted under the service lock, so
+ * counting is a plain increment that never contends. A new connection
+ * starts its threads only once those of the connection it replaced have
+ * ended. Each block carries a version that is odd while an update is in
+ * progress, so {@link #snapshot(Snapshot)} can copy a block without the
+ * writer ever seeing the reader: it simply copies again if the version
+ * moved.
+ */
+public final class ServiceMetrics {
+    // Frame data types get their own counters up to this value, the rest share 0
+    public static final int DATA_TYPES = 8;
+
+    // Outgoing block
+    private static final int FRAMES_OUT = 0;
+    private static final int BYTES_OUT = FRAMES_OUT + DATA_TYPES;
+    private static final int WRITES = BYTES_OUT + DATA_TYPES;
+    private static final int WRITE_NANOS = WRITES + 1;
+    private static final int WRITE_NANOS_MAX = WRITE_NANOS + 1;
+    private static final int OUT_SIZE = WRITE_NANOS_MAX + 1;
+
+    // Incoming block
+    private static final int FRAMES_IN = 0;
+    private static final int BYTES_IN = FRAMES_IN + DATA_TYPES;
+    private static final int READS = BYTES_IN + DATA_TYPES;
+    private static final int READ_BYTES = READS + 1;
+    private static final int IN_SIZE = READ_BYTES + 1;
+
+    // Connection block
+    private static final int CONNECTS = 0;
+    private static final int RECONNECTS = 1;
+    private static final int CONNECT_FAILURES = 2;
+    private static final int CONNECTIONS_LOST = 3;
+    private static final int CONNECT_NANOS = 4;
+    private static final int CONNECT_NANOS_LAST = 5;
+    private static final int OUTGOING_CONNECTS = 6;
+    private static final int LINK_SIZE = 7;
+
+    /**
+     * A group of counters with one writer and a version for consistent reads.
+     */
+    static final class Block {
+        // Copies to try before settling for one that may be torn
+        private static final int MAX_COPY_TRIES = 1000;
+
+        private final AtomicLong mVersion = new AtomicLong();
+        private final AtomicLongArray mValues;
+
+        Block(int size) {
+            mValues = new AtomicLongArray(size);
+        }
+
+        void begin() {
+            // A full store, so the values written next cannot pass it
+            mVersion.set(mVersion.get() + 1);
+        }
+
+        void add(int index, long delta) {
+            mValues.lazySet(index, mValues.get(index) + delta);
+        }
+
+        void set(int index, long value) {
+            mValues.lazySet(index, value);
+        }
+
+        void max(int index, long value) {
+            if (value > mValues.get(index)) mValues.lazySet(index, value);
+        }
+
+        void end() {
+            mVersion.lazySet(mVersion.get() + 1);
+        }
+
+        void copy(long[] into) {
+            for (int tries = 0; tries < MAX_COPY_TRIES; tries++) {
+                long before = mVersion.get();
+                if ((before & 1) == 0) {
+                    for (int i = 0; i < into.length; i++) into[i] = mValues.get(i);
+                    if (mVersion.get() == before) return;
+                }
+                Thread.yield();
+            }
+            // A lost version update would leave it odd for good, and the
+            // caller holds the service lock, so never spin forever
+            for (int i = 0; i < into.length; i++) into[i] = mValues.get(i);
+        }
+    }
+
+    final Block mOut = new Block(OUT_SIZE);
+    final Block mIn = new Block(IN_SIZE);
+    final Block mLink = new Block(LINK_SIZE);
+    // Duration of each stream write, in microseconds, written by the writer thread
+    final LatencyHistogram mWriteTime = new LatencyHistogram();
+    // Start of the pending outgoing connection, under the service lock
+    private long mConnectStart;
+    private boolean mConnectedBefore;
+
+    static int slot(int dataType) {
+        return dataType > 0 && dataType < DATA_TYPES ? dataType : 0;
+    }
+
+    // Writer thread
+
+    void frameOut(int dataType, int frameBytes) {
+        Block b = mOut;
+        b.begin();
+        b.add(FRAMES_OUT + slot(dataType), 1);
+        b.add(BYTES_OUT + slot(dataType), frameBytes);
+        b.end();
+    }
+
+    void writeDone(long nanos) {
+        Block b = mOut;
+        b.begin();
+        b.add(WRITES, 1);
+        b.add(WRITE_NANOS, nanos);
+        b.max(WRITE_NANOS_MAX, nanos);
+        b.end();
+        mWriteTime.record(nanos / 1000);
+    }
+
+    // Connection thread
+
+    void bytesRead(int bytes) {
+        Block b = mIn;
+        b.begin();
+        b.add(READS, 1);
+        b.add(READ_BYTES, bytes);
+        b.end();
+    }
+
+    void frameIn(int dataType, int frameBytes) {
+        Block b = mIn;
+        b.begin();
+        b.add(FRAMES_IN + slot(dataType), 1);
+        b.add(BYTES_IN + slot(dataType), frameBytes);
+        b.end();
+    }
+
+    // Service lock
+
+    void connectStarted() {
+        mConnectStart = System.nanoTime();
+    }
+
+    void connected() {
+        Block b = mLink;
+        b.begin();
+        b.add(CONNECTS, 1);
+        if (mConnectedBefore) b.add(RECONNECTS, 1);
+        if (mConnectStart != 0) {
+            long nanos = System.nanoTime() - mConnectStart;
+            b.add(OUTGOING_CONNECTS, 1);
+            b.add(CONNECT_NANOS, nanos);
+            b.set(CONNECT_NANOS_LAST, nanos);
+        }
+        b.end();
+        mConnectStart = 0;
+        mConnectedBefore = true;
+    }
+
+    void connectFailed() {
+        mConnectStart = 0;
+        Block b = mLink;
+        b.begin();
+        b.add(CONNECT_FAILURES, 1);
+        b.end();
+    }
+
+    void connectionLost() {
+        Block b = mLink;
+        b.begin();
+        b.add(CONNECTIONS_LOST, 1);
+        b.end();
+    }
+
+    /**
+     * Copy all counters. The values of one block are consistent with each
+     * other, e.g. frames and bytes out.
+     * @param into  A snapshot to reuse, or null to allocate one
+     */
+    public Snapshot snapshot(Snapshot into) {
+        Snapshot s = into != null ? into : new Snapshot();
+        s.mTime = System.nanoTime();
+        mOut.copy(s.mOut);
+        mIn.copy(s.mIn);
+        mLink.copy(s.mLink);
+        mWriteTime.snapshot(s.mWriteTime);
+        return s;
+    }
+
+    /**
+     * The counters at one point in time, plus the queue gauges of the
+     * connection at that time.
+     */
+    public static final class Snapshot {
+        private final long[] mOut = new long[OUT_SIZE];
+        private final long[] mIn = new long[IN_SIZE];
+        private final long[] mLink = new long[LINK_SIZE];
+        private final LatencyHistogram.Snapshot mWriteTime = new LatencyHistogram.Snapshot();
+        private long mTime;
+        // Gauges, filled in by the service
+        long mUrgentDepth, mSampleDepth;
+        long mUrgentHighWater, mSampleHighWater;
+        long mUrgentDrops, mSampleDrops;
+
+        /** Return the System.nanoTime() the snapshot was taken at. */
+        public long getTime() {
+            return mTime;
+        }
+
+        /** Return the number of frames of a data type written. */
+        public long getFramesOut(int dataType) {
+            return mOut[FRAMES_OUT + slot(dataType)];
+        }
+
+        /** Return the encoded size of the frames of a data type written. */
+        public long getBytesOut(int dataType) {
+            return mOut[BYTES_OUT + slot(dataType)];
+        }
+
+        /** Return the number of frames of a data type received. */
+        public long getFramesIn(int dataType) {
+            return mIn[FRAMES_IN + slot(dataType)];
+        }
+
+        /** Return the encoded size of the frames of a data type received. */
+        public long getBytesIn(int dataType) {
+            return mIn[BYTES_IN + slot(dataType)];
+        }
+
+        /** Return the number of bytes read from the stream, frames or not. */
+        public long getBytesRead() {
+            return mIn[READ_BYTES];
+        }
+
+        /** Return the number of stream writes. */
+        public long getWrites() {
+            return mOut[WRITES];
+        }
+
+        /** Return the mean duration of a stream write in nanoseconds. */
+        public long getWriteNanosMean() {
+            return mOut[WRITES] > 0 ? mOut[WRITE_NANOS] / mOut[WRITES] : 0;
+        }
+
+        /** Return the longest stream write in nanoseconds. */
+        public long getWriteNanosMax() {
+            return mOut[WRITE_NANOS_MAX];
+        }
+
+        /** Return the distribution of stream write durations, in microseconds. */
+        public LatencyHistogram.Snapshot getWriteTime() {
+            return mWriteTime;
+        }
+
+        /** Return the number of connections made. */
+        public long getConnects() {
+            return mLink[CONNECTS];
+        }
+
+        /** Return the number of connections made after the first. */
+        public long getReconnects() {
+            return mLink[RECONNECTS];
+        }
+
+        /** Return the number of failed outgoing connection attempts. */
+        public long getConnectFailures() {
+            return mLink[CONNECT_FAILURES];
+        }
+
+        /** Return the number of connections that were lost. */
+        public long getConnectionsLost() {
+            return mLink[CONNECTIONS_LOST];
+        }
+
+        /** Return the mean time an outgoing connection took, in nanoseconds. */
+        public long getConnectNanosMean() {
+            long n = mLink[OUTGOING_CONNECTS];
+            return n > 0 ? mLink[CONNECT_NANOS] / n : 0;
+        }
+
+        /** Return the time the last outgoing connection took, in nanoseconds. */
+        public long getConnectNanosLast() {
+            return mLink[CONNECT_NANOS_LAST];
+        }
+
+        /** Return the number of frames waiting in an outgoing lane. */
+        public long getQueueDepth(boolean urgent) {
+            return urgent ? mUrgentDepth : mSampleDepth;
+        }
+
+        /** Return the deepest an outgoing lane has been on the connection. */
+        public long getQueueHighWater(boolean urgent) {
+            return urgent ? mUrgentHighWater : mSampleHighWater;
+        }
+
+        /** Return the number of frames an outgoing lane dropped. */
+        public long getQueueDrops(boolean urgent) {
+            return urgent ? mUrgentDrops : mSampleDrops;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("out:");
+            for (int t = 0; t < DATA_TYPES; t++) {
+                if (mOut[FRAMES_OUT + t] == 0) continue;
+                sb.append(" type").append(t).append('=').append(mOut[FRAMES_OUT + t])
+                        .append('/').append(mOut[BYTES_OUT + t]).append('B');
+            }
+            sb.append(" writes=").append(getWrites())
+                    .append(" write ").append(mWriteTime);
+            sb.append("\nin:");
+            for (int t = 0; t < DATA_TYPES; t++) {
+                if (mIn[FRAMES_IN + t] == 0) continue;
+                sb.append(" type").append(t).append('=').append(mIn[FRAMES_IN + t])
+                        .append('/').append(mIn[BYTES_IN + t]).append('B');
+            }
+            sb.append(" read=").append(getBytesRead()).append('B');
+            sb.append("\nqueue: urgent=").append(mUrgentDepth).append('/').append(mUrgentHighWater)
+                    .append(" drops=").append(mUrgentDrops)
+                    .append(" samples=").append(mSampleDepth).append('/').append(mSampleHighWater)
+                    .append(" drops=").append(mSampleDrops);
+            sb.append("\nlink: connects=").append(getConnects())
+                    .append(" reconnects=").append(getReconnects())
+                    .append(" failures=").append(getConnectFailures())
+                    .append(" lost=").append(getConnectionsLost())
+                    .append(" connect=").append(getConnectNanosLast() / 1000000).append("ms");
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects frames for a short combining window and writes them to the
+ * stream in one call, so a key press, a pad move and a sensor sample that
+ * happen together cost one RFCOMM packet instead of three.
+ *
+ * The first frame of a batch starts the window and the owner calls
+ * {@link #flush()} once {@link #isDue(long)} says the window has closed;
+ * with a window of 0 that is as soon as the owner has appended whatever
+ * was queued. A frame appended with flush set goes out at once together
+ * with whatever is pending.
+ *
+ * If given an {@link InputLatency}, it records when each frame's write
+ * starts and ends; if given {@link ServiceMetrics}, it counts frames and
+ * times the writes.
+ *
+ * Confined to the writer thread.
+ */
+final class WriteCombiner {
+    private final OutputStream mOut;
+    private final byte[] mBatch;
+    private int mLength;
+    private long mBatchStart;
+    private volatile long mWindowNanos;
+    // Event type and capture time of each frame in the batch
+    private final InputLatency mLatency;
+    private final ServiceMetrics mMetrics;
+    private final int[] mEventTypes;
+    private final int[] mStamps;
+    private int mCount;
+
+    // Statistics
+    private volatile long mWrites;
+    private volatile long mFrames;
+
+    WriteCombiner(OutputStream out, int capacity) {
+        this(out, capacity, null, null);
+    }
+
+    WriteCombiner(OutputStream out, int capacity, InputLatency latency,
+            ServiceMetrics metrics) {
+        if (capacity < FrameCodec.MAX_FRAME) {
+            throw new IllegalArgumentException("capacity below one frame: " + capacity);
+        }
+        mOut = out;
+        mBatch = new byte[capacity];
+        mLatency = latency;
+        mMetrics = metrics;
+        int frames = latency != null ? capacity / FrameCodec.HEADER_SIZE : 0;
+        mEventTypes = new int[frames];
+        mStamps = new int[frames];
+    }
+
+    /**
+     * Set the combining window, may be called from any thread.
+     */
+    void setWindow(long nanos) {
+        mWindowNanos = nanos;
+    }
+
+    /**
+     * Frame the payload and queue it for the next write.
+     * @param flags  {@link FrameCodec#FLAG_CRC} and/or {@link FrameCodec#FLAG_STAMP}
+     * @param seq  The sequence number for the stamp
+     * @param micros  The capture time for the stamp
+     * @param flush  Write the batch now instead of waiting for the window
+     */
+    void append(int type, int flags, int seq, int micros, byte[] buffer, int offset, int length,
+            boolean flush) throws IOException {
+        if (!fits(length, flags)) {
+            flush();
+        }
+        if (mLength == 0) {
+            mBatchStart = System.nanoTime();
+        }
+        int n = FrameCodec.encode(type, flags, seq, micros, buffer, offset, length,
+                mBatch, mLength);
+        mLength += n;
+        mFrames++;
+        if (mMetrics != null) mMetrics.frameOut(type, n);
+        if (mLatency != null) {
+            mEventTypes[mCount] = InputLatency.eventType(type, buffer, offset, length);
+            mStamps[mCount] = micros;
+            mCount++;
+        }
+        if (flush) {
+            flush();
+        }
+    }
+
+    /**
+     * Return true if a frame of the given payload length fits the batch.
+     */
+    boolean fits(int length, int flags) {
+        return mLength + FrameCodec.frameSize(length, flags) <= mBatch.length;
+    }
+
+    /**
+     * Write everything that is pending.
+     */
+    void flush() throws IOException {
+        if (mLength == 0) return;
+        int n = mLength;
+        int count = mCount;
+        // Drop the batch even if the write fails, the stream is gone anyway
+        mLength = 0;
+        mCount = 0;
+        mWrites++;
+        if (mLatency != null) record(InputLatency.STAGE_WRITE_START, count);
+        long start = mMetrics != null ? System.nanoTime() : 0;
+        mOut.write(mBatch, 0, n);
+        if (mMetrics != null) mMetrics.writeDone(System.nanoTime() - start);
+        if (mLatency != null) record(InputLatency.STAGE_WRITE_END, count);
+    }
+
+    private void record(int stage, int count) {
+        int now = InputLatency.now();
+        for (int i = 0; i < count; i++) {
+            mLatency.record(stage, mEventTypes[i], mStamps[i], now);
+        }
+    }
+
+    boolean isPending() {
+        return mLength > 0;
+    }
+
+    /**
+     * Return true if a batch is pending and its window has closed.
+     */
+    boolean isDue(long now) {
+        return mLength > 0 && now - mBatchStart >= mWindowNanos;
+    }
+
+    /**
+     * Return the time left until the pending batch is due, in nanoseconds.
+     */
+    long timeLeft(long now) {
+        return mBatchStart + mWindowNanos - now;
+    }
+
+    /** Return the number of writes made to the stream. */
+    long getWriteCount() {
+        return mWrites;
+    }
+
+    /** Return the number of frames appended. */
+    long getFrameCount() {
+        return mFrames;
+    }
+}